@@ -0,0 +1,93 @@
+package getmospatch.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// The download loop (downloadFile) reading a 64MB file from a loopback HTTP server that serves it from memory,
+// nothing is sent to MOS. One operation is 64MB.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DownloadBenchmark {
+    private static final int SIZE = 64 * 1024 * 1024;
+
+    private HttpServer server;
+    private String url;
+    private File target;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] content = new byte[SIZE];
+        new Random(2).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(content);
+                body.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.zip";
+        target = File.createTempFile(".getMOSPatch", ".bench");
+
+        // the downloads need the session cookie, otherwise they would try to log on to MOS
+        CookieManager cookieMgr = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+        HttpCookie cookie = new HttpCookie("Oracle_updates_auth", "benchmark");
+        cookie.setPath("/");
+        cookie.setVersion(0);
+        cookieMgr.getCookieStore().add(URI.create("http://127.0.0.1/"), cookie);
+        CookieHandler.setDefault(cookieMgr);
+        Internals.set("username", "benchmark");
+        Internals.set("password", "benchmark");
+        out = Internals.silence();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+        target.delete();
+    }
+
+    @Benchmark
+    public Object downloadFile64MB() throws Throwable {
+        return Internals.DOWNLOAD_FILE.invoke(url, target.getPath(), 0L, false);
+    }
+}
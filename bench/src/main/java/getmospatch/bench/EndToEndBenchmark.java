@@ -0,0 +1,104 @@
+package getmospatch.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A whole run of getMOSPatch (log on, searches, downloads) against FakeMOS started in this JVM, for
+// benchpatches=<n> patches (10) and benchplatforms=<n> platforms (2). getMOSPatch runs in its own process, with
+// the threads, segments and searchthreads options given here, and the phases are taken from its report=. The
+// mock... options are passed to FakeMOS, jar=<getMOSPatch.jar> is the getMOSPatch to run (the copy of
+// getMOSPatch in this module by default).
+//
+//   java -cp target/benchmarks.jar getmospatch.bench.EndToEndBenchmark benchpatches=20 threads=4 segments=2
+public class EndToEndBenchmark {
+    private static final List<String> PASSED = Arrays.asList("threads", "segments", "searchthreads", "engine");
+    private static final Pattern PHASE = Pattern.compile("\"(\\d\\. [^\"]+)\": (\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = FakeMOS.options(args);
+        int patchCount = Math.max(1, FakeMOS.intParam(options, "benchpatches", 10));
+        int platformCount = Math.max(1, FakeMOS.intParam(options, "benchplatforms", 2));
+        if (!options.containsKey("mockplatforms")) {
+            options.put("mockplatforms", String.valueOf(platformCount));
+        }
+        String classpath = options.containsKey("jar") ? options.get("jar")
+                : Internals.MAIN.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        FakeMOS mos = new FakeMOS(0, options);
+        File stage = File.createTempFile(".getMOSPatch", ".bench");
+        try {
+            if (!stage.delete() || !stage.mkdir()) {
+                throw new IOException("can't create " + stage.getPath());
+            }
+            StringBuilder patches = new StringBuilder();
+            StringBuilder platforms = new StringBuilder();
+            for (int i = 0; i < patchCount; i++) {
+                String patch = String.valueOf(30000000 + i);
+                patches.append(i == 0 ? "" : ",").append(patch);
+                // the server side checksums are not part of the measurement
+                for (String platform : mos.platformCodes(platformCount)) {
+                    for (String name : mos.fileNames(patch, platform)) {
+                        mos.digest(name);
+                    }
+                }
+            }
+            for (String platform : mos.platformCodes(platformCount)) {
+                platforms.append(platforms.length() == 0 ? "" : ",").append(platform);
+            }
+            File report = new File(stage, "report.json");
+            List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp", classpath, "getMOSPatch",
+                    "mosurl=" + mos.url(), "MOSUser=benchmark", "MOSPass=benchmark", "patch=" + patches,
+                    "platform=" + platforms, "download=all", "stagedir=" + stage.getPath(), "silent=yes",
+                    "report=" + report.getPath()));
+            for (String option : PASSED) {
+                if (options.containsKey(option)) {
+                    command.add(option + "=" + options.get(option));
+                }
+            }
+            System.out.println("Running " + patchCount + " patches x " + platformCount + " platforms against " + mos.url());
+            Process process = new ProcessBuilder(command).directory(stage).redirectErrorStream(true).start();
+            String output = StartupBenchmark.readAll(process.getInputStream());
+            int exit = process.waitFor();
+            if (exit != 0 || !report.isFile()) {
+                throw new IOException("getMOSPatch failed (exit code " + exit + "):\n" + output);
+            }
+
+            long[] phases = new long[5];
+            Matcher m = PHASE.matcher(StartupBenchmark.readAll(new FileInputStream(report)));
+            while (m.find()) {
+                phases[m.group(1).charAt(0) - '0'] = Long.parseLong(m.group(2));
+            }
+            long bytes = 0;
+            int files = 0;
+            for (File f : stage.listFiles()) {
+                if (f.getName().endsWith(".zip")) {
+                    bytes += f.length();
+                    files++;
+                }
+            }
+            double search = Math.max(1, phases[3]) / 1e3;
+            double download = Math.max(1, phases[4]) / 1e3;
+            System.out.println(String.format(" %-22s %10.3f s", "log on and platforms", (phases[1] + phases[2]) / 1e3));
+            System.out.println(String.format(" %-22s %10.3f s  %10.1f searches/s", "search and plan", search,
+                    patchCount * platformCount / search));
+            System.out.println(String.format(" %-22s %10.3f s  %10.1f MB/s (%d files, %d MB)", "download", download,
+                    bytes / 1024.0 / 1024.0 / download, files, bytes / 1024 / 1024));
+            System.out.println(String.format(" %-22s %10.3f s", "total", (phases[1] + phases[2] + phases[3] + phases[4]) / 1e3));
+        } finally {
+            mos.stop();
+            File[] left = stage.listFiles();
+            for (int i = 0; left != null && i < left.length; i++) {
+                left[i].delete();
+            }
+            stage.delete();
+        }
+    }
+}
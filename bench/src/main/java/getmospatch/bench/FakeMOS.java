@@ -0,0 +1,474 @@
+package getmospatch.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+// A stand-in for updates.oracle.com to test getMOSPatch against (mosurl=http://127.0.0.1:<port>), started with
+//   java -cp target/benchmarks.jar getmospatch.bench.FakeMOS port=<port> [mock...=<value>]...
+// It implements the log on redirects and the Oracle_updates_auth cookie, the platforms list, patch searches,
+// multipart patch details (patches starting with 1), password protected patches (starting with 9) and the
+// file downloads (redirected to a signed URL, with Range support). Options:
+//   mockfiles=<n>        files per patch and platform (3)      mockfilesize=<MB>  size of each file (16)
+//   mockplatforms=<n>    platforms/languages offered (20)      mocklatency=<ms>   delay of every response (0)
+//   mockrate=<KB/s>      bandwidth of each connection (no limit)
+//   mockfail=<percent>   searches answered with 503 and downloads cut in the middle (0)
+//   mockzip=yes          the files are real zips, built in memory, to test extract=yes
+//   mockskew=<n>         the last file of every patch and platform is n times larger (1)
+//   mocknewfile=<s>      every s seconds each patch (not multipart) gets a new file, to test watch= (never)
+//   mockuser/mockpass    the only credentials accepted (any credentials are accepted by default)
+//   mockkeystore/mockkeypass  JKS keystore to serve HTTPS instead of HTTP
+public class FakeMOS implements HttpHandler {
+    private static final String[] PLATFORM_NAMES = { "226P;Linux x86-64", "46P;Linux x86", "23P;Oracle Solaris on SPARC (64-bit)",
+            "267P;Oracle Solaris on x86-64 (64-bit)", "212P;IBM AIX on POWER Systems (64-bit)", "197P;HP-UX Itanium",
+            "233P;Microsoft Windows x64 (64-bit)", "541P;Linux ARM 64-bit", "2000P;Generic Platform", "3L;Canadian French (FRC)" };
+    private static final int BLOCK = 64 * 1024;
+
+    final Map<String, String> options;
+    final HttpServer server;
+    final int files;
+    final long newFileEvery;
+    final long started = System.currentTimeMillis();
+    final long fileSize;
+    final int skew;
+    final int platformCount;
+    final int latency;
+    final long rate;
+    final int failPercent;
+    final boolean zips;
+    final Map<String, byte[]> zipContent = new ConcurrentHashMap<String, byte[]>();
+    final Random random = new Random();
+    final Set<String> tokens = Collections.synchronizedSet(new HashSet<String>());
+    final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+    // when the first request since the last reset arrived (System.nanoTime), for bench/StartupBenchmark
+    final AtomicLong firstRequest = new AtomicLong();
+
+    FakeMOS(int port, Map<String, String> options) throws IOException {
+        this.options = options;
+        files = Math.max(1, intParam(options, "mockfiles", 3));
+        newFileEvery = intParam(options, "mocknewfile", 0) * 1000L;
+        fileSize = intParam(options, "mockfilesize", 16) * 1024L * 1024L;
+        skew = Math.max(1, intParam(options, "mockskew", 1));
+        platformCount = Math.max(1, intParam(options, "mockplatforms", 20));
+        latency = intParam(options, "mocklatency", 0);
+        rate = intParam(options, "mockrate", 0) * 1024L;
+        failPercent = intParam(options, "mockfail", 0);
+        zips = checkParam(options, "mockzip", "yes");
+        InetSocketAddress address = new InetSocketAddress(port);
+        if (options.containsKey("mockkeystore")) {
+            try {
+                char[] pass = String.valueOf(options.get("mockkeypass")).toCharArray();
+                KeyStore keyStore = KeyStore.getInstance("JKS");
+                FileInputStream in = new FileInputStream(options.get("mockkeystore"));
+                try {
+                    keyStore.load(in, pass);
+                } finally {
+                    in.close();
+                }
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(keyStore, pass);
+                SSLContext ssl = SSLContext.getInstance("TLS");
+                ssl.init(kmf.getKeyManagers(), null, null);
+                HttpsServer https = HttpsServer.create(address, 64);
+                https.setHttpsConfigurator(new HttpsConfigurator(ssl));
+                server = https;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("can't use " + options.get("mockkeystore") + ": " + e);
+            }
+        } else {
+            server = HttpServer.create(address, 64);
+        }
+        server.createContext("/", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    String url() {
+        return (server instanceof HttpsServer ? "https" : "http") + "://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    public void handle(HttpExchange ex) throws IOException {
+        firstRequest.compareAndSet(0, System.nanoTime());
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            String path = ex.getRequestURI().getPath();
+            Map<String, String> query = new HashMap<String, String>();
+            if (ex.getRequestURI().getRawQuery() != null) {
+                for (String p : ex.getRequestURI().getRawQuery().split("&")) {
+                    int i = p.indexOf('=');
+                    query.put(i < 0 ? p : p.substring(0, i), i < 0 ? "" : URLDecoder.decode(p.substring(i + 1), "UTF-8"));
+                }
+            }
+            // only the searches and the downloads fail, the log on always works
+            boolean fail = failPercent > 0 && random.nextInt(100) < failPercent && !path.startsWith("/sso/")
+                    && !path.equals("/Orion/Services/download");
+            if (fail && !path.startsWith("/download/")) {
+                ex.getResponseHeaders().set("Retry-After", "1");
+                send(ex, 503, "<html>Service Temporarily Unavailable</html>");
+            } else if (path.equals("/sso/login")) {
+                login(ex, query.get("redirect"));
+            } else if (path.startsWith("/download/")) {
+                sendFile(ex, path.substring("/download/".length()), fail);
+            } else if (!isLoggedOn(ex)) {
+                // the SSO log on page remembers where to go back to
+                String back = ex.getRequestURI().getRawPath()
+                        + (ex.getRequestURI().getRawQuery() == null ? "" : "?" + ex.getRequestURI().getRawQuery());
+                redirect(ex, 302, "/sso/login?redirect=" + URLEncoder.encode(back, "UTF-8"));
+            } else if (path.equals("/Orion/Services/download")) {
+                send(ex, 200, "<html><body>Oracle Updates Services</body></html>");
+            } else if (path.equals("/Orion/SavedSearches/switch_to_simple")) {
+                send(ex, 200, platformsPage());
+            } else if (path.equals("/Orion/SimpleSearch/process_form")) {
+                send(ex, 200, searchPage(query.get("patch_number"), query.get("plat_lang"), false));
+            } else if (path.equals("/Orion/PatchDetails/process_form")) {
+                send(ex, 200, searchPage(query.get("patch_num"), query.get("plat_lang"), true));
+            } else if (path.startsWith("/Orion/Download/process_form/")) {
+                // the real files are served from another host with a signed URL
+                String token = Long.toHexString(random.nextLong());
+                redirect(ex, 302, url() + "/download/" + path.substring("/Orion/Download/process_form/".length())
+                        + "?signature=" + token);
+            } else {
+                send(ex, 404, "<html>Not found</html>");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private boolean isLoggedOn(HttpExchange ex) {
+        List<String> cookies = ex.getRequestHeaders().get("Cookie");
+        if (cookies != null) {
+            for (String header : cookies) {
+                for (String cookie : header.split(";")) {
+                    String[] nv = cookie.trim().split("=", 2);
+                    if (nv.length == 2 && "Oracle_updates_auth".equals(nv[0]) && tokens.contains(nv[1])) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void login(HttpExchange ex, String back) throws IOException {
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        String expected = options.containsKey("mockuser")
+                ? "Basic " + Base64.getEncoder().encodeToString((options.get("mockuser") + ":" + options.get("mockpass")).getBytes("UTF-8")) : null;
+        if (auth == null || !auth.startsWith("Basic ") || (expected != null && !expected.equals(auth))) {
+            ex.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"Oracle\"");
+            send(ex, 401, "<html>Unauthorized</html>");
+            return;
+        }
+        String token = Long.toHexString(random.nextLong());
+        tokens.add(token);
+        ex.getResponseHeaders().add("Set-Cookie", "Oracle_updates_auth=" + token + "; Path=/");
+        redirect(ex, 303, back == null ? "/Orion/Services/download" : back);
+    }
+
+    private String platformsPage() {
+        StringBuilder sb = new StringBuilder("<html><body><form name=simple>\n<select name=plat_lang size=5 multiple>\n");
+        sb.append("<option value=\"\" selected>Select up to 5\n");
+        for (int i = 0; i < platformCount; i++) {
+            String[] p = i < PLATFORM_NAMES.length ? PLATFORM_NAMES[i].split(";") : new String[] { (1000 + i) + "P", "Platform " + (1000 + i) };
+            sb.append("<option value=\"").append(p[0]).append("\">").append(p[1]).append("\n");
+        }
+        return sb.append("</select>\n</form></body></html>\n").toString();
+    }
+
+    // mocknewfile=<seconds>: every that many seconds, each patch that isn't multipart gets a new release
+    List<String> fileNames(String patch, String platform) {
+        List<String> names = new ArrayList<String>();
+        long count = files + (newFileEvery > 0 && !patch.startsWith("1") ? (System.currentTimeMillis() - started) / newFileEvery : 0);
+        for (int i = 0; i < count; i++) {
+            if (patch.startsWith("1")) {
+                names.add("p" + patch + "_112040_" + platform + "_" + (i + 1) + "of" + files + ".zip");
+            } else {
+                names.add("p" + patch + "_" + (190000 + i * 20000) + "_" + platform + ".zip");
+            }
+        }
+        return names;
+    }
+
+    private String searchPage(String patch, String platform, boolean details) throws IOException {
+        StringBuilder sb = new StringBuilder("<html><head><title>Patch Search Results</title></head><body>\n<table>\n");
+        if (patch == null || platform == null || !patch.matches("\\d+")) {
+            return sb.append("</table>No results found</body></html>\n").toString();
+        }
+        if (patch.startsWith("9")) {
+            sb.append("<tr><td>p").append(patch).append("_190000_").append(platform)
+                    .append(".zip</td><td><a href=\"javascript:void(0)\">Download Password Protected Patch</a></td></tr>\n");
+        } else if (patch.startsWith("1") && !details) {
+            sb.append("<tr><td>").append(patch).append("</td><td><a href='javascript:showDetails(\"/Orion/PatchDetails/process_form?patch_num=")
+                    .append(patch).append("&plat_lang=").append(platform).append("\")'>Download Multi Part Patch</a></td></tr>\n");
+        } else {
+            for (String name : fileNames(patch, platform)) {
+                sb.append("<tr class=\"OraTableCellText\"><td>").append(name).append("</td><td>").append(fileSize(name) / 1024 / 1024)
+                        .append(" MB</td>\n<td><a href=\"").append(url()).append("/Orion/Download/process_form/").append(name)
+                        .append("?aru=").append(Math.abs(name.hashCode())).append("&patch_file=").append(name)
+                        .append("\">Download</a></td>\n<td>SHA-256</td><td>").append(digest(name)).append("</td></tr>\n");
+            }
+        }
+        return sb.append("</table></body></html>\n").toString();
+    }
+
+    // the content of a file is generated from its name, so it's the same in every request
+    private byte[] block(String name) {
+        byte[] block = new byte[BLOCK];
+        new Random(name.hashCode()).nextBytes(block);
+        return block;
+    }
+
+    private void fill(byte[] block, long position, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            long p = position + i;
+            buffer[i] = (byte) (block[(int) (p % BLOCK)] ^ (p / BLOCK));
+        }
+    }
+
+    // mockzip=yes: the files are real zips (kept in memory), with a README, an executable script like
+    // OPatch/opatch and mockfilesize MB of data
+    private byte[] zip(String name) throws IOException {
+        byte[] content = zipContent.get(name);
+        if (content == null) {
+            String dir = name.substring(1, name.indexOf('_')) + "/";
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutputStream zip = new ZipOutputStream(bytes);
+            zip.putNextEntry(new ZipEntry(dir));
+            zip.putNextEntry(new ZipEntry(dir + "README.txt"));
+            zip.write(("Stand-in for " + name + "\n").getBytes("UTF-8"));
+            zip.putNextEntry(new ZipEntry(dir + "opatch"));
+            zip.write("#!/bin/sh\necho OPatch stand-in\n".getBytes("UTF-8"));
+            zip.putNextEntry(new ZipEntry(dir + "files/data.bin"));
+            byte[] block = block(name);
+            byte[] buffer = new byte[BLOCK];
+            long size = fileSize(name);
+            for (long p = 0; p < size; p += BLOCK) {
+                int length = (int) Math.min(BLOCK, size - p);
+                fill(block, p, buffer, length);
+                zip.write(buffer, 0, length);
+            }
+            zip.close();
+            content = bytes.toByteArray();
+            setUnixModes(content);
+            zipContent.put(name, content);
+        }
+        return content;
+    }
+
+    // ZipOutputStream can't store Unix permissions, they are set in the central directory of the zip: every
+    // entry is made on Unix, the directories are 755, "opatch" is 755 and the other files are 644
+    private static void setUnixModes(byte[] zip) throws IOException {
+        int eocd = zip.length - 22;
+        int offset = (zip[eocd + 16] & 0xFF) | (zip[eocd + 17] & 0xFF) << 8 | (zip[eocd + 18] & 0xFF) << 16 | (zip[eocd + 19] & 0xFF) << 24;
+        int entries = (zip[eocd + 10] & 0xFF) | (zip[eocd + 11] & 0xFF) << 8;
+        for (int i = 0; i < entries; i++) {
+            int nameLength = (zip[offset + 28] & 0xFF) | (zip[offset + 29] & 0xFF) << 8;
+            int extraLength = (zip[offset + 30] & 0xFF) | (zip[offset + 31] & 0xFF) << 8;
+            int commentLength = (zip[offset + 32] & 0xFF) | (zip[offset + 33] & 0xFF) << 8;
+            String entry = new String(zip, offset + 46, nameLength, "UTF-8");
+            int attributes = entry.endsWith("/") ? 040755 << 16 | 0x10 : (entry.endsWith("/opatch") ? 0100755 : 0100644) << 16;
+            zip[offset + 5] = 3;
+            for (int b = 0; b < 4; b++) {
+                zip[offset + 38 + b] = (byte) (attributes >>> (8 * b));
+            }
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private long size(String name) throws IOException {
+        return zips ? zip(name).length : fileSize(name);
+    }
+
+    // mockskew=<n>: the last file of every patch and platform is n times larger than the others
+    private long fileSize(String name) {
+        String[] parts = name.replace(".zip", "").split("_");
+        List<String> names = fileNames(parts[0].substring(1), parts[2]);
+        return name.equals(names.get(names.size() - 1)) ? fileSize * skew : fileSize;
+    }
+
+    // the bytes of the file from "position"
+    private void content(String name, byte[] block, long position, byte[] buffer, int length) throws IOException {
+        if (zips) {
+            System.arraycopy(zip(name), (int) position, buffer, 0, length);
+        } else {
+            fill(block, position, buffer, length);
+        }
+    }
+
+    String digest(String name) throws IOException {
+        String digest = digests.get(name);
+        if (digest == null) {
+            MessageDigest md = sha256();
+            byte[] block = block(name);
+            byte[] buffer = new byte[BLOCK];
+            long size = size(name);
+            for (long p = 0; p < size; p += BLOCK) {
+                int length = (int) Math.min(BLOCK, size - p);
+                content(name, block, p, buffer, length);
+                md.update(buffer, 0, length);
+            }
+            digest = String.format("%064x", new BigInteger(1, md.digest()));
+            digests.put(name, digest);
+        }
+        return digest;
+    }
+
+    private void sendFile(HttpExchange ex, String name, boolean fail) throws IOException, InterruptedException {
+        if (!name.endsWith(".zip")) {
+            send(ex, 404, "<html>Not found</html>");
+            return;
+        }
+        long size = size(name);
+        long from = 0;
+        long to = size - 1;
+        int status = 200;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        Matcher m = Pattern.compile("bytes=(\\d+)-(\\d*)").matcher(range == null ? "" : range);
+        if (m.matches()) {
+            from = Long.parseLong(m.group(1));
+            if (m.group(2).length() > 0) {
+                to = Math.min(to, Long.parseLong(m.group(2)));
+            }
+            if (from > to) {
+                ex.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                send(ex, 416, "");
+                return;
+            }
+            status = 206;
+            ex.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + size);
+        }
+        ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+        ex.getResponseHeaders().set("ETag", "\"" + Integer.toHexString(name.hashCode()) + "-" + size + "\"");
+        ex.getResponseHeaders().set("Last-Modified", "Mon, 15 Jan 2024 10:00:00 GMT");
+        ex.getResponseHeaders().set("Content-Type", "application/zip");
+        if ("HEAD".equals(ex.getRequestMethod())) {
+            ex.getResponseHeaders().set("Content-Length", String.valueOf(to - from + 1));
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        ex.sendResponseHeaders(status, to - from + 1);
+        // a failed download stops somewhere in the middle
+        long end = fail ? from + (to - from) / 2 : to;
+        byte[] block = block(name);
+        byte[] buffer = new byte[16 * 1024];
+        OutputStream out = ex.getResponseBody();
+        long start = System.nanoTime();
+        for (long p = from; p <= end; p += buffer.length) {
+            int length = (int) Math.min(buffer.length, end - p + 1);
+            content(name, block, p, buffer, length);
+            out.write(buffer, 0, length);
+            if (rate > 0) {
+                long due = (p - from + length) * 1000000000L / rate - (System.nanoTime() - start);
+                if (due > 0) {
+                    Thread.sleep(due / 1000000, (int) (due % 1000000));
+                }
+            }
+        }
+        if (!fail) {
+            out.close();
+        }
+    }
+
+    private void redirect(HttpExchange ex, int status, String location) throws IOException {
+        ex.getResponseHeaders().set("Location", location);
+        ex.sendResponseHeaders(status, -1);
+    }
+
+    private void send(HttpExchange ex, int status, String body) throws IOException {
+        byte[] data = body.getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        ex.sendResponseHeaders(status, data.length == 0 ? -1 : data.length);
+        if (data.length > 0) {
+            OutputStream out = ex.getResponseBody();
+            out.write(data);
+            out.close();
+        }
+    }
+
+
+    // the codes of the first "count" platforms of the platform list
+    List<String> platformCodes(int count) {
+        List<String> codes = new ArrayList<String>();
+        for (int i = 0; i < Math.min(count, platformCount); i++) {
+            codes.add(i < PLATFORM_NAMES.length ? PLATFORM_NAMES[i].split(";")[0] : (1000 + i) + "P");
+        }
+        return codes;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int intParam(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+
+    static boolean checkParam(Map<String, String> options, String key, String value) {
+        return value.equals(options.get(key));
+    }
+
+    // key=value arguments, like the parameters of getMOSPatch
+    static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            options.put(i < 0 ? arg : arg.substring(0, i), i < 0 ? "" : arg.substring(i + 1));
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = options(args);
+        FakeMOS mos = new FakeMOS(intParam(options, "port", 8080), options);
+        System.out.println("Stand-in MOS server is listening on " + mos.url() + " (stop it with Ctrl+C)");
+    }
+}
@@ -0,0 +1,94 @@
+package getmospatch.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+// getMOSPatch is in the default package, which can't be imported, and the benchmarked methods are private.
+// They are looked up once and called through method handles kept in static finals, which the JIT compiles like
+// direct calls, so the benchmarks measure getMOSPatch and not the reflection.
+final class Internals {
+    static final Class<?> MAIN = load("getMOSPatch");
+    static final Class<?> SEARCH_RESULT = load("getMOSPatch$SearchResult");
+    static final Class<?> PAGE_EXTRACTOR = load("getMOSPatch$PageExtractor");
+    static final Class<?> COUNTING_INPUT_STREAM = load("getMOSPatch$CountingInputStream");
+
+    // the loop of extractPage that reads a page as it arrives from MOS
+    static final MethodHandle READ_PAGE = method(PAGE_EXTRACTOR, "read", COUNTING_INPUT_STREAM, String.class, boolean.class);
+    static final MethodHandle ENCODE = method(MAIN, "encode", byte[].class);
+    static final MethodHandle DOWNLOAD_FILE = method(MAIN, "downloadFile", String.class, String.class, long.class, boolean.class);
+    static final MethodHandle NEW_SEARCH_RESULT = constructor(SEARCH_RESULT);
+    static final MethodHandle NEW_PAGE_EXTRACTOR = constructor(PAGE_EXTRACTOR, SEARCH_RESULT, boolean.class);
+    static final MethodHandle NEW_COUNTING_INPUT_STREAM = constructor(COUNTING_INPUT_STREAM, InputStream.class);
+
+    static {
+        // what main sets up before any of these methods runs
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("regexp", ".*");
+        parameters.put("silent", "yes");
+        set("parameters", parameters);
+    }
+
+    private Internals() {
+    }
+
+    static void set(String name, Object value) {
+        try {
+            Field field = MAIN.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(null, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("getMOSPatch." + name + " can't be set", e);
+        }
+    }
+
+    // the benchmarked code prints its usual output
+    static PrintStream silence() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return out;
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(name + " isn't on the classpath", e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(type.getName() + "." + name + " has changed", e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(type.getName() + " has changed", e);
+        }
+    }
+}
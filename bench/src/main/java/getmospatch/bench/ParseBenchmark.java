@@ -0,0 +1,108 @@
+package getmospatch.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The parsing of the MOS pages and the Base64 encoding of the credentials, on generated pages that look like
+// the ones MOS returns. The pages are read from memory by PageExtractor.read, the loop extractPage runs on the
+// response of MOS.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    private byte[] platformsPage;
+    private byte[] searchPage;
+    private byte[] credentials;
+    private byte[] block;
+
+    @Setup
+    public void setUp() throws Exception {
+        platformsPage = platformsPage().getBytes("UTF-8");
+        searchPage = searchPage(40).getBytes("UTF-8");
+        credentials = "someone.with.a.long.name@example.com:S3cr3t-Passw0rd!".getBytes("UTF-8");
+        block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+    }
+
+    @Benchmark
+    public Object parsePlatforms() throws Throwable {
+        return read(platformsPage);
+    }
+
+    @Benchmark
+    public Object parseSearchPage() throws Throwable {
+        return read(searchPage);
+    }
+
+    private static Object read(byte[] page) throws Throwable {
+        Object extractor = Internals.NEW_PAGE_EXTRACTOR.invoke(Internals.NEW_SEARCH_RESULT.invoke(), false);
+        Internals.READ_PAGE.invoke(extractor, Internals.NEW_COUNTING_INPUT_STREAM.invoke(new ByteArrayInputStream(page)),
+                "UTF-8", true);
+        return extractor;
+    }
+
+    @Benchmark
+    public Object encodeCredentials() throws Throwable {
+        return Internals.ENCODE.invoke(credentials);
+    }
+
+    // one operation is 1MB
+    @Benchmark
+    public Object encode1MB() throws Throwable {
+        return Internals.ENCODE.invoke(block);
+    }
+
+    // a search results page: "files" download links with their SHA-256, and one multipart patch
+    static String searchPage(int files) {
+        StringBuilder sb = new StringBuilder("<html><head><title>Patch Search Results</title></head><body>\n<table>\n");
+        for (int i = 0; i < files; i++) {
+            String zip = "p3" + (1000000 + i) + "_190000_Linux-x86-64.zip";
+            sb.append("<tr class=\"OraTableCellText\"><td>").append(zip).append("</td><td>Database Release Update 19.")
+                    .append(i).append(".0.0</td><td>2.1 GB</td>\n<td><a href=\"https://updates.oracle.com/Orion/Download/process_form/")
+                    .append(zip).append("?aru=2456").append(i).append("&file_id=11223").append(i).append("&patch_file=")
+                    .append(zip).append("&params=aGVsbG8gd29ybGQ\">Download</a></td>\n<td>SHA-256</td><td>");
+            for (int j = 0; j < 8; j++) {
+                sb.append(Integer.toHexString(0x10000000 + i * 31 + j * 7919));
+            }
+            sb.append("</td></tr>\n");
+            for (int j = 0; j < 20; j++) {
+                sb.append("<tr><td class=\"x1\" nowrap>Classification</td><td>General</td><td>Oracle Database</td></tr>\n");
+            }
+        }
+        sb.append("<a href=\"javascript:showDetails(\"/Orion/PatchDetails/process_form?patch_num=12978712&aru=1\")\">")
+                .append("Download Multi Part Patch</a>\n</table></body></html>\n");
+        return sb.toString();
+    }
+
+    // the platforms/languages list of the simple search page
+    static String platformsPage() {
+        StringBuilder sb = new StringBuilder("<html><body><form>\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("<input type=hidden name=field").append(i).append(" value=\"").append(i).append("\">\n");
+        }
+        sb.append("<select name=plat_lang size=5 multiple>\n<option value=\"\" selected>Select up to 5\n");
+        for (int i = 0; i < 150; i++) {
+            sb.append("<option value=\"").append(i + 1).append("P\">Platform number ").append(i + 1).append("\n");
+        }
+        for (int i = 0; i < 40; i++) {
+            sb.append("<option value=\"").append(i + 1).append("L\">Language number ").append(i + 1).append("\n");
+        }
+        sb.append("</select>\n</form></body></html>\n");
+        return sb.toString();
+    }
+}
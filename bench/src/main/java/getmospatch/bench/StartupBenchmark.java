@@ -0,0 +1,116 @@
+package getmospatch.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The variants of getMOSPatch are started benchruns=<n> times (5) each, to download one small file from a
+// FakeMOS server started in this JVM, as the pipelines that run getMOSPatch for one or two files do. The
+// median time until the server receives the first request, the median time of the whole run and the peak RSS
+// (reported by the run itself with debug=yes) are printed for each variant:
+//   jar       java -cp <jar>
+//   appcds    java -XX:SharedArchiveFile=<benchcds> -cp <jar>  (getMOSPatch.jsa next to the jar)
+//   native    <benchnative>  (the native image getMOSPatch next to the jar)
+// jar=<getMOSPatch.jar> is the jar to start, the copy of getMOSPatch in this module by default. The variants
+// whose files don't exist are skipped. See "Fast start" in README.md.
+//
+//   java -cp target/benchmarks.jar getmospatch.bench.StartupBenchmark jar=/opt/getMOSPatch/getMOSPatch.jar
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = FakeMOS.options(args);
+        int runs = Math.max(1, FakeMOS.intParam(options, "benchruns", 5));
+        File classpath = new File(options.containsKey("jar") ? options.get("jar")
+                : Internals.MAIN.getProtectionDomain().getCodeSource().getLocation().toURI().getPath());
+        File home = classpath.getAbsoluteFile().getParentFile();
+        File cds = new File(options.containsKey("benchcds") ? options.get("benchcds") : new File(home, "getMOSPatch.jsa").getPath());
+        File nativeImage = new File(options.containsKey("benchnative") ? options.get("benchnative")
+                : new File(home, "getMOSPatch").getPath());
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        Map<String, List<String>> variants = new LinkedHashMap<String, List<String>>();
+        variants.put("jar", Arrays.asList(java, "-cp", classpath.getPath(), "getMOSPatch"));
+        if (cds.isFile()) {
+            variants.put("appcds", Arrays.asList(java, "-XX:SharedArchiveFile=" + cds.getPath(), "-cp", classpath.getPath(), "getMOSPatch"));
+        } else {
+            System.out.println("Skipping appcds, " + cds.getPath() + " doesn't exist");
+        }
+        if (nativeImage.isFile() && !nativeImage.isDirectory()) {
+            variants.put("native", Arrays.asList(nativeImage.getPath()));
+        } else {
+            System.out.println("Skipping native, " + nativeImage.getPath() + " doesn't exist");
+        }
+
+        if (!options.containsKey("mockfilesize")) {
+            options.put("mockfilesize", "1");
+        }
+        FakeMOS mos = new FakeMOS(0, options);
+        File stage = File.createTempFile(".getMOSPatch", ".bench");
+        try {
+            if (!stage.delete() || !stage.mkdir()) {
+                throw new IOException("can't create " + stage.getPath());
+            }
+            System.out.println("Starting each variant " + runs + " times to download one file from " + mos.url() + " (median):");
+            System.out.println(String.format(" %-10s %14s %10s %10s", "variant", "first request", "total", "peak RSS"));
+            for (Map.Entry<String, List<String>> variant : variants.entrySet()) {
+                long[] first = new long[runs];
+                long[] total = new long[runs];
+                long[] rss = new long[runs];
+                for (int i = 0; i < runs; i++) {
+                    List<String> command = new ArrayList<String>(variant.getValue());
+                    command.addAll(Arrays.asList("mosurl=" + mos.url(), "MOSUser=benchmark", "MOSPass=benchmark",
+                            "patch=30000001", "platform=226P", "regexp=.*190000.*", "download=all", "silent=yes", "debug=yes"));
+                    File[] left = stage.listFiles();
+                    for (int j = 0; left != null && j < left.length; j++) {
+                        left[j].delete();
+                    }
+                    mos.firstRequest.set(0);
+                    long t0 = System.nanoTime();
+                    Process process = new ProcessBuilder(command).directory(stage).redirectErrorStream(true).start();
+                    String output = readAll(process.getInputStream());
+                    int exit = process.waitFor();
+                    total[i] = System.nanoTime() - t0;
+                    first[i] = mos.firstRequest.get() - t0;
+                    if (exit != 0 || !new File(stage, "p30000001_190000_226P.zip").exists()) {
+                        throw new IOException(variant.getKey() + " failed (exit code " + exit + "):\n" + output);
+                    }
+                    Matcher m = Pattern.compile("Peak RSS: (\\d+) MB").matcher(output);
+                    rss[i] = m.find() ? Long.parseLong(m.group(1)) : -1;
+                }
+                Arrays.sort(first);
+                Arrays.sort(total);
+                Arrays.sort(rss);
+                System.out.println(String.format(" %-10s %12.3f s %8.3f s %10s", variant.getKey(), first[runs / 2] / 1e9,
+                        total[runs / 2] / 1e9, rss[runs / 2] < 0 ? "?" : rss[runs / 2] + " MB"));
+            }
+        } finally {
+            mos.stop();
+            File[] left = stage.listFiles();
+            for (int i = 0; left != null && i < left.length; i++) {
+                left[i].delete();
+            }
+            stage.delete();
+        }
+    }
+
+    static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        try {
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -48,14 +48,45 @@ Usage:
                                   [regexp=<regular_expression>] \
                                   [download=all] \
                                   [stagedir=<directory path>] \
+                                  [threads=<n>] \
+                                  [segments=<n>] \
+                                  [searchthreads=<n>] \
+                                  [cachettl=<minutes>] \
+                                  [refresh=yes] \
+                                  [session=yes] \
+                                  [sync=yes] \
+                                  [verify=yes] \
+                                  [extract=yes [keepzip=no]] \
+                                  [store=<directory path>] \
+                                  [retries=<n>] [retrydelay=<ms>] [breaker=<n>] [breakerpause=<s>] \
+                                  [maxrate=<KB/s>] \
+                                  [ratefile=<file>] \
+                                  [report=<file>] \
+                                  [metrics=<file>] \
+                                  [mosurl=<url>] \
+                                  [engine=auto|urlconnection|httpclient] \
                                   [MOSUser=<username>] \
                                   [MOSPass=<password>] \
                                   [silent=yes] \
                                   [debug=yes]
 
+        java -jar getMOSPatch.jar manifest=<file> [platform=...] [regexp=...] [stagedir=...] [threads=<n>] [searchthreads=<n>] ...
+
+        java -jar getMOSPatch.jar watch=<file> [watchinterval=<minutes>] [watchhook=<command>] [watchpolls=<n>] [stagedir=...] ...
+
+        java -jar getMOSPatch.jar store=<directory path> storegc=yes
+
+        java -jar getMOSPatch.jar serve=<port> [servebind=<address>] [stagedir=<directory path>] [servequota=<MB>] [threads=<n>] [MOSUser=...] ...
+
         Note 1: for JRE 1.6: use java -Dhttps.protocols=TLSv1 -jar getMOSPatch.jar ...
         Note 2: Usage notes are provided for a packaged jre
         Note 3: Order of parameters is irrelevant
+        Note 4: Files are downloaded into <filename>.part first. If a download is interrupted, run the same command again
+                to continue from where it stopped.
+        Note 5: The SHA-256 digest of each file is calculated during the download and recorded in the .getMOSPatch.manifest
+                file of the staging directory. With verify=yes, the file is verified against the digest on the patch page.
+        Note 6: Before the downloads start, the size of every selected file is requested and the download plan is printed.
+                The largest files are downloaded first, and nothing is downloaded if the staging directory is too small.
 
                     patch -         list of patches to download, i.e. 6880880,16867777,12978712
                     reset=yes -     This will initiate the resetting of the chosen Platforms/Languages, otherwise the list previous time used is retrieved from .getMOSPatch.cfg
@@ -65,6 +96,41 @@ Usage:
                                     i.e. .*121.* would be useful for Oracle Database 12c (R1)
                     download=yes -  specify to download all found files without need to specify inputs. Very useful when "regexp" parameter is used
                     stagedir -      Optionally specify the staging directory. The current directory is the default.
+                    threads -       Number of files to download in parallel. 1 (one file at a time) is the default.
+                    segments -      Number of connections used to download each large file (in byte ranges). 1 is the default.
+                    searchthreads - Number of patch/platform searches to run in parallel. 1 is the default.
+                    cachettl -      Search results are cached in .getMOSPatch.cache and reused for this many minutes.
+                    refresh=yes -   Search MOS again even if cached search results are available.
+                    session=yes -   Store the MOS session in .getMOSPatch.session (encrypted) and reuse it while it's valid.
+                    maxrate -       Limit the total download rate of all transfers (KB/s).
+                    ratefile -      File with the rate limit (KB/s, 0 = unlimited), it's checked every second while downloading.
+                    report -        Write the timings of the phases and of the last 10000 HTTP requests to this file (JSON),
+                                    at the end of the run, after every poll of watch and every minute of serve.
+                    metrics -       Write the same timings to this file in the Prometheus text format.
+                    mosurl -        Use another server instead of https://updates.oracle.com, i.e. bench/FakeMOS.
+                    engine -        HTTP client for the MOS pages: httpclient (java.net.http, Java 11+) or urlconnection.
+                                    The default (auto) is httpclient on Java 21+. Files are always downloaded with HttpURLConnection.
+                    serve -         Run a caching mirror of MOS on this port, files are requested as /<patch>/<plat_lang>/<file>.
+                    servebind -     Address the mirror listens on (127.0.0.1). The mirror has no authentication and downloads
+                                    with your MOS account: only listen on a network where every host may use it.
+                    servequota -    Remove the least recently requested files of the mirror when stagedir has more than this
+                                    (MB, 20480 by default, 0 = no limit).
+                    manifest -      File with one download job per line: patch;plat_lang[,plat_lang]*;regexp;subdirectory
+                                    All files found are downloaded, nothing is asked. Used instead of "patch".
+                    watch -         Keep running and download the new files of the subscriptions in this file (same format as manifest).
+                    watchinterval - Minutes between the polls of MOS in watch mode, +-20% at random (60).
+                    watchhook -     Command run for every new file in watch mode, with the file as the last argument.
+                    watchpolls -    Stop the watch mode after this many polls (0 = never, the default).
+                    sync=yes -      Skip the files that are already in the staging directory and haven't changed on MOS.
+                    verify=yes -    Verify the files against the SHA-256 digests scraped from the patch pages (see Note 5).
+                    extract=yes -   Extract each zip into stagedir/<file name without .zip> while it's downloaded.
+                    keepzip=no -    With extract=yes, remove the zip when it's extracted.
+                    store -         Keep every downloaded file once in this directory (by SHA-256) and hard link it into the staging
+                                    directories, the files already there are linked instead of downloaded.
+                    storegc=yes -   Remove the files of the store that are not used in any staging directory any more.
+                    retries -       Repeat a page request or a download that failed with a transient error up to this many times (3).
+                    retrydelay -    The first retry waits about this long (ms, 1000), each next one twice as long, unless Retry-After asks for more.
+                    breaker -       After this many consecutive failures of a host (5), pause all requests to it for breakerpause seconds (60).
                     MOSUser -       Optionally specify the MOS username, if not provided, it will be prompted.
                     MOSPass -       Optionally specify the MOS pasword, if not provided, it will be prompted.
                     silent=yes -    The dynamic progress indicator is not displayed.
@@ -88,31 +154,87 @@ Example:            To download OPatch for 11gR2 database on Linux x86-64:
 */
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 // 2024-04-22 java.util.List required for doesCookieExist
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 public class getMOSPatch {
-    // 2024-04-23 Set finalDownload true upon downloadAllFiles
-    public static boolean finalDownload = false;
-
     // Constants section
     private static final int BUFFER_SIZE = 128 * 1024;
-    private static final int PROGRESS_INTERVAL = 1024 * 1024;
-    private static final int LIMIT_PAGE_SIZE = 256 * 1024;
+    private static final int MIN_TRANSFER_BUFFER = 64 * 1024;
+    private static final int MAX_TRANSFER_BUFFER = 1024 * 1024;
+    private static final int PIPE_SIZE = 4 * 1024 * 1024;
+    private static final int PROGRESS_REFRESH = 500;
+    private static final int PROGRESS_LOG_INTERVAL = 10000;
+    private static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
 
     private static final char[] pchar = { '-', '\\', '|', '/' };
 
     // I'll store the passed parameters in this Map
     private static Map<String, String> parameters;
 
+    // MOS itself, or a stand-in server (mosurl=http://host:port) for testing
+    private static String mosURL = "https://updates.oracle.com";
+
     // holds the list of configured Platforms/Languages
     private static Map<String, String> configuredPlatforms = new HashMap<String, String>();
 
@@ -123,6 +245,17 @@ public class getMOSPatch {
     // inputs are collected.
     private static Map<Integer, String> patchFileList = new TreeMap<Integer, String>();
 
+    // SHA-256 digests published on the patch pages, by download URL (only with verify=yes)
+    private static Map<String, String> expectedDigests = new ConcurrentHashMap<String, String>();
+
+    // verify=yes: the download is checked against the digest found on the patch page. The digest is scraped from
+    // the HTML, which Oracle may change at any time, so a download is only failed for it when asked to.
+    private static void expectDigest(String url, Map<String, String> digests) {
+        if (checkParam("verify", "yes") && digests.containsKey(zipName(url))) {
+            expectedDigests.put(url, digests.get(zipName(url)));
+        }
+    }
+
     // Start of "Base64Encoder"
     // The code was written by John Zukowski and it was found on
     // https://www.infoworld.com/article/2077546/java-tip-47--url-authentication-revisited.html
@@ -230,54 +363,428 @@ public class getMOSPatch {
         return false;
     }
    
-    private static URL getFinalURL(URL url, String addAuth) {
-        try {
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            // System.out.println("Assessing URL: "+ url.toString());
-            con.setInstanceFollowRedirects(false);
-            if ("Yes".equals(addAuth)) {
-                con.setRequestProperty("Authorization", "Basic " + encode(username + ":" + password));
+    // session=yes: the cookies of the MOS session are stored in .getMOSPatch.session, so the next run
+    // doesn't need to log on again while the session is still valid. The file is readable by the owner
+    // only and encrypted with a key derived from the MOS credentials.
+    private static final String SESSION_FILE = ".getMOSPatch.session";
+
+    private static class SessionCookieStore implements CookieStore {
+        private final CookieStore store = new CookieManager().getCookieStore();
+        // the URI and the time each cookie was received, these are needed to restore the cookies
+        private final Map<HttpCookie, URI> uris = new HashMap<HttpCookie, URI>();
+        private final Map<HttpCookie, Long> received = new HashMap<HttpCookie, Long>();
+
+        public synchronized void add(URI uri, HttpCookie cookie) {
+            store.add(uri, cookie);
+            uris.put(cookie, uri);
+            received.put(cookie, System.currentTimeMillis());
+        }
+
+        public synchronized List<HttpCookie> get(URI uri) {
+            return store.get(uri);
+        }
+
+        public synchronized List<HttpCookie> getCookies() {
+            return store.getCookies();
+        }
+
+        public synchronized List<URI> getURIs() {
+            return store.getURIs();
+        }
+
+        public synchronized boolean remove(URI uri, HttpCookie cookie) {
+            uris.remove(cookie);
+            received.remove(cookie);
+            return store.remove(uri, cookie);
+        }
+
+        public synchronized boolean removeAll() {
+            uris.clear();
+            received.clear();
+            return store.removeAll();
+        }
+
+        private static Cipher cipher(int mode, byte[] salt, byte[] iv) throws GeneralSecurityException {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            byte[] key = factory.generateSecret(
+                    new PBEKeySpec((username + ":" + password).toCharArray(), salt, 10000, 128)).getEncoded();
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            return cipher;
+        }
+
+        // one line for each cookie: uri, name, value, domain, path, expiry time (-1 for session cookies),
+        // secure flag and version separated by tabs
+        synchronized void save() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (HttpCookie cookie : store.getCookies()) {
+                long expires = cookie.getMaxAge() < 0 ? -1 : received.get(cookie) + cookie.getMaxAge() * 1000;
+                sb.append(uris.get(cookie)).append('\t').append(cookie.getName()).append('\t')
+                        .append(cookie.getValue()).append('\t').append(cookie.getDomain()).append('\t')
+                        .append(cookie.getPath()).append('\t').append(expires).append('\t')
+                        .append(cookie.getSecure()).append('\t').append(cookie.getVersion()).append('\n');
+            }
+            byte[] salt = new byte[16];
+            byte[] iv = new byte[16];
+            SecureRandom random = new SecureRandom();
+            random.nextBytes(salt);
+            random.nextBytes(iv);
+            byte[] data;
+            try {
+                data = cipher(Cipher.ENCRYPT_MODE, salt, iv).doFinal(sb.toString().getBytes("UTF-8"));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("can't encrypt the session: " + e);
+            }
+
+            File f = new File(SESSION_FILE);
+            if (f.exists() && !f.delete()) {
+                throw new IOException("can't replace " + SESSION_FILE);
+            }
+            // restrict the permissions before anything is written to the file
+            if (!f.createNewFile() || !f.setReadable(false, false) || !f.setReadable(true, true)
+                    || !f.setWritable(false, false) || !f.setWritable(true, true)) {
+                f.delete();
+                throw new IOException("can't restrict the permissions of " + SESSION_FILE);
+            }
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                out.write(salt);
+                out.write(iv);
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+
+        // returns false if there's no stored session, or it can't be decrypted with the current credentials
+        synchronized boolean load() {
+            File f = new File(SESSION_FILE);
+            if (!f.exists() || f.length() <= 32) {
+                return false;
+            }
+            String session;
+            try {
+                byte[] data = new byte[(int) f.length()];
+                DataInputStream in = new DataInputStream(new FileInputStream(f));
+                try {
+                    in.readFully(data);
+                } finally {
+                    in.close();
+                }
+                session = new String(cipher(Cipher.DECRYPT_MODE, Arrays.copyOfRange(data, 0, 16),
+                        Arrays.copyOfRange(data, 16, 32)).doFinal(data, 32, data.length - 32), "UTF-8");
+            } catch (IOException e) {
+                return false;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            for (String line : session.split("\n")) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 8 || !fields[5].matches("-?\\d+") || !fields[7].matches("\\d+")) {
+                    continue;
+                }
+                long expires = Long.parseLong(fields[5]);
+                if (expires >= 0 && expires <= now) {
+                    continue;
+                }
+                HttpCookie cookie = new HttpCookie(fields[1], fields[2]);
+                if (!"null".equals(fields[3])) {
+                    cookie.setDomain(fields[3]);
+                }
+                if (!"null".equals(fields[4])) {
+                    cookie.setPath(fields[4]);
+                }
+                cookie.setMaxAge(expires < 0 ? -1 : (expires - now) / 1000);
+                cookie.setSecure(Boolean.parseBoolean(fields[6]));
+                cookie.setVersion(Integer.parseInt(fields[7]));
+                add("null".equals(fields[0]) ? null : URI.create(fields[0]), cookie);
+            }
+            return !store.getCookies().isEmpty();
+        }
+    }
+
+    // report=<file> / metrics=<file>: every HTTP request is timed and written to a JSON report and/or
+    // a Prometheus text format file at the end of the run (also when it failed), after every poll of watch=
+    // and every minute of serve=
+    private static class Exchange {
+        String urlClass;    // setup, login, platforms, search, details, session, probe, download, segment
+        String host;
+        int status = -1;
+        int redirects;      // redirects followed by HttpURLConnection itself are counted as one
+        long start = System.nanoTime();
+        long connect;       // TCP connect and TLS handshake (nanoseconds)
+        long ttfb;          // until the response headers were received
+        long duration;
+        long bytes;
+
+        // the body has been read (or the request failed)
+        void finish(long bodyBytes) {
+            bytes = bodyBytes;
+            duration = System.nanoTime() - start;
+            if (instrument) {
+                record(this);
+            }
+        }
+    }
+
+    private static volatile boolean instrument = false;
+    // the report lists the last MAX_REPORTED requests, the metrics are totals since the start (counters never
+    // go down): a long running watch= or serve= doesn't keep every request in memory
+    private static final int MAX_REPORTED = 10000;
+    private static final long REPORT_INTERVAL = 60000;
+    private static final LinkedList<Exchange> exchanges = new LinkedList<Exchange>();
+    // request class -> count, connect, ttfb, duration, bytes
+    private static final Map<String, long[]> totals = new TreeMap<String, long[]>();
+    private static final Map<String, Integer> statuses = new TreeMap<String, Integer>();
+
+    private static void record(Exchange ex) {
+        synchronized (exchanges) {
+            exchanges.add(ex);
+            if (exchanges.size() > MAX_REPORTED) {
+                exchanges.removeFirst();
             }
+            if (!totals.containsKey(ex.urlClass)) {
+                totals.put(ex.urlClass, new long[5]);
+            }
+            long[] t = totals.get(ex.urlClass);
+            t[0]++;
+            t[1] += ex.connect;
+            t[2] += ex.ttfb;
+            t[3] += ex.duration;
+            t[4] += ex.bytes;
+            String key = "class=\"" + ex.urlClass + "\",status=\"" + ex.status + "\"";
+            statuses.put(key, statuses.containsKey(key) ? statuses.get(key) + 1 : 1);
+        }
+    }
+
+    // connects and waits for the response headers, measuring both
+    private static Exchange track(HttpURLConnection con, String urlClass) throws IOException {
+        Exchange ex = new Exchange();
+        ex.urlClass = urlClass;
+        URL requested = con.getURL();
+        ex.host = requested.getHost();
+        try {
             con.connect();
-            int resCode = con.getResponseCode();
+            ex.connect = System.nanoTime() - ex.start;
+            ex.status = con.getResponseCode();
+            ex.ttfb = System.nanoTime() - ex.start;
+        } catch (IOException e) {
+            ex.finish(0);
+            throw e;
+        }
+        if (!requested.equals(con.getURL())) {
+            ex.redirects = 1;
+            ex.host = con.getURL().getHost();
+        }
+        if (ex.status >= 500 || ex.status == 429) {
+            con.disconnect();
+            throw transientError(ex, con.getHeaderField("Retry-After"));
+        }
+        return ex;
+    }
+
+    // 5xx and 429 responses are retried (see Retry), not sooner than the server asks for in Retry-After
+    private static TransientIOException transientError(Exchange ex, String retryAfterHeader) {
+        long retryAfter = -1;
+        if (retryAfterHeader != null) {
+            try {
+                retryAfter = Long.parseLong(retryAfterHeader.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // an HTTP date
+                try {
+                    retryAfter = Math.max(0, new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US)
+                            .parse(retryAfterHeader.trim()).getTime() - System.currentTimeMillis());
+                } catch (ParseException pe) {
+                    // not a valid date, the usual backoff applies
+                }
+            }
+        }
+        ex.finish(0);
+        return new TransientIOException("HTTP " + ex.status + " from " + ex.host, retryAfter);
+    }
+
+    private static synchronized void writeReport(Map<String, Long> phases) throws IOException {
+        List<Exchange> all;
+        Map<String, long[]> totals = new TreeMap<String, long[]>();
+        Map<String, Integer> statuses;
+        synchronized (exchanges) {
+            all = new ArrayList<Exchange>(exchanges);
+            for (Map.Entry<String, long[]> e : getMOSPatch.totals.entrySet()) {
+                totals.put(e.getKey(), e.getValue().clone());
+            }
+            statuses = new TreeMap<String, Integer>(getMOSPatch.statuses);
+        }
+        if (parameters.containsKey("report")) {
+            PrintWriter writer = new PrintWriter(parameters.get("report"), "UTF-8");
+            writer.println("{");
+            writer.println("  \"time\": " + System.currentTimeMillis() + ",");
+            writer.print("  \"phases_ms\": {");
+            String sep = "";
+            for (Map.Entry<String, Long> e : phases.entrySet()) {
+                writer.print(sep + "\n    \"" + e.getKey() + "\": " + e.getValue());
+                sep = ",";
+            }
+            writer.println("\n  },");
+            writer.print("  \"requests\": [");
+            sep = "";
+            for (Exchange ex : all) {
+                long ms = Math.max(1, ex.duration / 1000000);
+                writer.print(sep + "\n    {\"class\": \"" + ex.urlClass + "\", \"host\": \"" + ex.host + "\", \"status\": "
+                        + ex.status + ", \"redirects\": " + ex.redirects + ", \"connect_ms\": " + ex.connect / 1000000
+                        + ", \"ttfb_ms\": " + ex.ttfb / 1000000 + ", \"duration_ms\": " + ex.duration / 1000000
+                        + ", \"bytes\": " + ex.bytes + ", \"kb_per_s\": " + ex.bytes / ms + "}");
+                sep = ",";
+            }
+            writer.println("\n  ]");
+            writer.println("}");
+            writer.close();
+        }
+        if (parameters.containsKey("metrics")) {
+            PrintWriter writer = new PrintWriter(parameters.get("metrics"), "UTF-8");
+            writer.println("# HELP getmospatch_phase_seconds Duration of the phases of the last run.");
+            writer.println("# TYPE getmospatch_phase_seconds gauge");
+            for (Map.Entry<String, Long> e : phases.entrySet()) {
+                writer.println("getmospatch_phase_seconds{phase=\"" + e.getKey() + "\"} " + e.getValue() / 1000.0);
+            }
+            writer.println("# HELP getmospatch_http_requests_total HTTP requests by class and status.");
+            writer.println("# TYPE getmospatch_http_requests_total counter");
+            for (Map.Entry<String, Integer> e : statuses.entrySet()) {
+                writer.println("getmospatch_http_requests_total{" + e.getKey() + "} " + e.getValue());
+            }
+            // summaries without quantiles: the time spent and the number of requests, the average is sum / count
+            String[] names = { "connect_seconds", "ttfb_seconds", "duration_seconds" };
+            String[] help = { "Time to connect (TCP and TLS) of the HTTP requests by class.",
+                    "Time until the response headers of the HTTP requests by class.",
+                    "Duration of the HTTP requests (including the body) by class." };
+            for (int i = 0; i < names.length; i++) {
+                writer.println("# HELP getmospatch_http_" + names[i] + " " + help[i]);
+                writer.println("# TYPE getmospatch_http_" + names[i] + " summary");
+                for (Map.Entry<String, long[]> e : totals.entrySet()) {
+                    writer.println("getmospatch_http_" + names[i] + "_sum{class=\"" + e.getKey() + "\"} "
+                            + e.getValue()[i + 1] / 1e9);
+                    writer.println("getmospatch_http_" + names[i] + "_count{class=\"" + e.getKey() + "\"} "
+                            + e.getValue()[0]);
+                }
+            }
+            writer.println("# HELP getmospatch_http_bytes_total Bytes received in the bodies of the HTTP requests by class.");
+            writer.println("# TYPE getmospatch_http_bytes_total counter");
+            for (Map.Entry<String, long[]> e : totals.entrySet()) {
+                writer.println("getmospatch_http_bytes_total{class=\"" + e.getKey() + "\"} " + e.getValue()[4]);
+            }
+            writer.close();
+        }
+    }
+
+    // serve= runs until it's stopped: the report is written every REPORT_INTERVAL and when it's stopped
+    private static void writeReports(final Map<String, Long> phases) {
+        Thread writer = new Thread("getMOSPatch report") {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(REPORT_INTERVAL);
+                        writeReport(phases);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        System.out.println("WARNING: can't write the report: " + e.getMessage());
+                    }
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    writeReport(phases);
+                } catch (IOException e) {
+                    System.out.println("WARNING: can't write the report: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // a single request without following the redirects - if the stored session has expired MOS redirects
+    // to the login page
+    private static boolean isSessionValid() {
+        try {
+            PageResponse response = openPage(mosURL + "/Orion/Services/download", "session");
+            response.close();
+            response.exchange.finish(0);
+            return response.status == HttpURLConnection.HTTP_OK && doesCookieExist("Oracle_updates_auth");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // the session expires in a long running process (watch=, serve=), it's renewed the same way it's started in main
+    private static final Object sessionLock = new Object();
+
+    private static void renewSession(SessionCookieStore session) throws IOException {
+        synchronized (sessionLock) {
+            if (!isSessionValid()) {
+                ((CookieManager) CookieHandler.getDefault()).getCookieStore().removeAll();
+                downloadString(mosURL + "/Orion/Services/download");
+                if (session != null) {
+                    session.save();
+                }
+            }
+        }
+    }
+
+    // Follows the log on redirects by hand, sending the credentials to every server on the way. Failures are
+    // thrown to the caller, which retries the request.
+    private static final int MAX_REDIRECTS = 20;
+
+    private static URL getFinalURL(URL url, String addAuth) throws IOException {
+        boolean authorization = "Yes".equals(addAuth);
+        for (int hop = 0; hop < MAX_REDIRECTS; hop++) {
+            // System.out.println("Assessing URL: "+ url.toString());
+            PageResponse response = engine.get(url, authorization, "login");
+            response.close();
+            response.exchange.finish(0);
+            int resCode = response.status;
             // System.out.println("Response code = "+resCode);
             // 2024-04-22 Added HTTP_SEE_OTHER 303
             if (resCode == HttpURLConnection.HTTP_MOVED_PERM || resCode == HttpURLConnection.HTTP_MOVED_TEMP || resCode == HttpURLConnection.HTTP_SEE_OTHER) {
-                String Location = con.getHeaderField("Location");
-                if (Location.startsWith("/")) {
-                    Location = url.getProtocol() + "://" + url.getHost() + Location;
-                }
-                return getFinalURL(new URL(Location), "Yes");
+                // relative locations are resolved against the current URL (including its port)
+                url = new URL(url, response.location);
+                authorization = true;
+                continue;
             }
             if (resCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
                 System.out.println("ERROR: Invalid credentials");
                 System.exit(0);
             }
-            // 2024-04-22 Recurse until Oracle_updates_auth cookie is set
+            // 2024-04-22 Repeat until Oracle_updates_auth cookie is set
             if (resCode == HttpURLConnection.HTTP_OK && !doesCookieExist("Oracle_updates_auth")) {
-                return getFinalURL(new URL("https://updates.oracle.com/Orion/SavedSearches/switch_to_simple"), "Yes");
+                url = new URL(mosURL + "/Orion/SavedSearches/switch_to_simple");
+                authorization = true;
+                continue;
             }
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+            return url;
         }
-        return url;
+        throw new IOException("too many redirects while logging on at " + url.getHost());
     }
 
     private static boolean checkParam(String key, String value) {
         return parameters.containsKey(key) && value.equals(parameters.get(key));
     }
 
-    // method to download a file
-    private static void downloadFile(String url, String filename) throws IOException {
-        downloadFile(url, filename, Long.MAX_VALUE);
+    // returns the numeric value of a parameter, or the default if it's not set or not a number
+    private static int intParam(String key, int defaultValue) {
+        try {
+            return parameters.containsKey(key) ? Integer.parseInt(parameters.get(key)) : defaultValue;
+        } catch (NumberFormatException e) {
+            System.out.println("warning: ignoring non-numeric value " + key + "=" + parameters.get(key));
+            return defaultValue;
+        }
     }
 
-    private static void downloadFile(String url, String filename, long limit) throws IOException {
-        long fileSize = 0;
-        int printSize = 0;
-        long tim1, tim2;
-        String progressData = " ";
-
+    // opens the connection to download a file from MOS, logging on first if the Oracle_updates_auth cookie is
+    // not there yet. The redirects to the file are followed by HttpURLConnection.
+    private static HttpURLConnection openConnection(String url) throws IOException {
         HttpURLConnection connection;
         // 2024-04-22 Ensure Oracle_updates_auth cookie is set 
         if (!doesCookieExist("Oracle_updates_auth")) {
@@ -286,350 +793,3046 @@ public class getMOSPatch {
             URL realURL = new URL(url);
             connection = (HttpURLConnection) realURL.openConnection();
             connection.setRequestProperty("Authorization", "Basic " + encode(username + ":" + password));
-            // 2024-04-22 manually disable Redirects unless downloading zips
-            if (!finalDownload) {
-                connection.setInstanceFollowRedirects(false);
-            }
-        }
-
-        // connection.setFollowRedirects(true);
-        connection.connect();
-        
-        BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
-        // BufferedInputStream in = new BufferedInputStream(url.openStream());
-        FileOutputStream outputStream = new FileOutputStream(filename);
-        int bytesRead = -1;
-        int iterator = 0;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        // I'm using this hardcoded filename from webpage download.
-        if (!filename.equals(".getMOSPatch.tmp")) {
-            System.out.print("Downloading " + filename + ":  ");
-        }
-        // The download is happening here. I've pimped it with some progress display
-        // (except when downloading a webpage)
-        tim1 = System.currentTimeMillis();
-        while ((bytesRead = in.read(buffer, 0, BUFFER_SIZE)) != -1 && fileSize <= limit) {
-            fileSize = fileSize + (long) bytesRead;
-            outputStream.write(buffer, 0, bytesRead);
-            // Show extended download progress only if downloading a real file
-            // I've seen this stuff sometimes not working on windows.
-            boolean silent = checkParam("silent", "yes");
-            if (!filename.equals(".getMOSPatch.tmp")) {
-                if ((printSize + PROGRESS_INTERVAL < fileSize) && !silent) {
-                    tim2 = System.currentTimeMillis();
-                    System.out.print(String.format("%" + progressData.length() + "s", "").replace(" ", "\b"));
-                    progressData = pchar[(iterator++ % 4)] + " " + fileSize / 1024 / 1024 + "MB"
-                            + " at average speed of " + fileSize / (tim2 - tim1) + "KB/s        ";
-                    System.out.print(progressData);
-                    printSize = printSize + PROGRESS_INTERVAL;
-                }
-                // If downloading a webpage, just show a rotating char as a sign that
-                // something's ongoing, unless silent=yes
-            } else if (!silent) {
-                System.out.print(String.format("%" + progressData.length() + "s", "").replace(" ", "\b")
-                        + pchar[(iterator++ % 4)]);
-            }
-        }
-        outputStream.flush();
-        outputStream.close();
-        in.close();
-        // Download completed. In case of a real file post the final stats, otherwise
-        // remove the char.
-        System.out.print(String.format("%" + progressData.length() + "s", "").replace(' ', '\b'));
-        if (!filename.equals(".getMOSPatch.tmp")) {
-            tim2 = System.currentTimeMillis();
-            if (tim2 == tim1) {
-                tim2++;
-            }
-            progressData = fileSize / 1024 / 1024 + "MB at average speed of " + fileSize / (tim2 - tim1)
-                    + "KB/s - DONE!";
-            System.out.println(progressData);
-        } else {
-            System.out.print("\b");
         }
+        return connection;
     }
 
-    // reads a file and returns a string
-    private static String readFile(String fileName) throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader(fileName));
-        StringBuilder sb = new StringBuilder();
-        String line = br.readLine();
-        while (line != null) {
-            sb.append(line).append("\n");
-            line = br.readLine();
+    // requests a MOS page without following redirects, logging on first if the Oracle_updates_auth cookie is not
+    // there yet
+    private static PageResponse openPage(String url, String urlClass) throws IOException {
+        // 2024-04-22 Ensure Oracle_updates_auth cookie is set
+        if (!doesCookieExist("Oracle_updates_auth")) {
+            return engine.get(getFinalURL(new URL(url), "No"), false, urlClass);
         }
-        br.close();
-        return sb.toString();
+        return engine.get(new URL(url), true, urlClass);
     }
 
-    // downloads from URL into a String
-    private static String downloadString(String url) throws IOException {
-        return downloadString(url, Long.MAX_VALUE);
+    // The MOS pages (the log on, the platforms, the searches and the patch details) are requested through an
+    // HttpEngine, the files are always downloaded with HttpURLConnection. Neither engine follows redirects
+    // (getFinalURL does) and both send the cookies through the default CookieHandler, so doesCookieExist sees the
+    // same cookies whichever is used.
+    //   engine=urlconnection  HttpURLConnection, works on every JRE
+    //   engine=httpclient     java.net.http.HttpClient (Java 11+): a single client for the whole run reuses its
+    //                         connections and multiplexes the requests over HTTP/2 if the server supports it.
+    //                         On Java 21+ the client and the search workers run on virtual threads.
+    //   engine=auto           httpclient on Java 21+, urlconnection otherwise (the default)
+    private interface HttpEngine {
+        // sends a GET request and waits for the response headers, see track()
+        PageResponse get(URL url, boolean authorization, String urlClass) throws IOException;
+
+        // the pool that runs the parallel searches
+        ExecutorService newPool(int threads);
     }
 
-    private static String downloadString(String url, long limit) throws IOException {
-        downloadFile(url, ".getMOSPatch.tmp", limit);
-        String outputString = readFile(".getMOSPatch.tmp");
-        boolean result = new File(".getMOSPatch.tmp").delete();
-        if (!result)
-            System.out.println("warning: can't remove .getMOSPatch.tmp");
-        return outputString;
-    }
+    private static class PageResponse {
+        Exchange exchange;  // finished by the caller, when the body has been read
+        URL url;
+        int status;
+        String location;
+        String contentType;
+        InputStream body;   // null if the status is an error
+
+        InputStream body() throws IOException {
+            if (body == null) {
+                throw new IOException("Server returned HTTP response code: " + status + " for URL: " + url);
+            }
+            return body;
+        }
 
-    // Validates that all values in the passed comma separated string exists in the
-    // Map<String, String>
-    private static boolean checkInputs(String inputs, Map<String, String> map) {
-        for (String p : inputs.split(",")) {
-            if (!map.containsKey(p))
-                return false;
+        void close() throws IOException {
+            if (body != null) {
+                body.close();
+            }
         }
-        return true;
     }
 
-    // Validates that all values in the passed comma separated string exists in the
-    // Map<Integer, String>
-    private static boolean checkInputsTree(String inputs, Map<Integer, String> map) {
-        // special processing for "all", as it's processed later
-        if (inputs.equals("") || inputs.equals("none") || inputs.equals("all")) {
-            return true;
-        }
-        for (String p : inputs.split(",")) {
+    private static HttpEngine engine = new UrlConnectionEngine();
+
+    private static HttpEngine selectEngine() {
+        String name = parameters.containsKey("engine") ? parameters.get("engine") : "auto";
+        String version = System.getProperty("java.specification.version");
+        boolean java21 = !version.startsWith("1.") && Integer.parseInt(version.split("\\.")[0]) >= 21;
+        if ("httpclient".equals(name) || ("auto".equals(name) && java21)) {
             try {
-                if (!map.containsKey(Integer.parseInt(p)))
-                    return false;
-            } catch (NumberFormatException e) {
-                return false;
+                return new HttpClientEngine();
+            } catch (Exception e) {
+                System.out.println("warning: java.net.http.HttpClient can't be used (" + e + "), using HttpURLConnection");
             }
         }
-        return true;
+        return new UrlConnectionEngine();
     }
 
-    // Method to populate platforms
-    private static void platforms() throws IOException {
-        String getMOSPatchcfg = "";
-        String listPlatforms = "";
-        String s;
-        // this map is used to store platform/language codes and description from MOS.
-        Map<String, String> platforms = new HashMap<String, String>();
+    private static class UrlConnectionEngine implements HttpEngine {
+        public PageResponse get(URL url, boolean authorization, String urlClass) throws IOException {
+            HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            // 2024-04-22 manually disable Redirects unless downloading zips
+            con.setInstanceFollowRedirects(false);
+            if (authorization) {
+                con.setRequestProperty("Authorization", "Basic " + encode(username + ":" + password));
+            }
+            PageResponse response = new PageResponse();
+            response.exchange = track(con, urlClass);
+            response.url = url;
+            response.status = response.exchange.status;
+            response.location = con.getHeaderField("Location");
+            response.contentType = con.getContentType();
+            if (response.status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                con.disconnect();
+            } else {
+                response.body = con.getInputStream();
+            }
+            return response;
+        }
 
-        // Reading the .getMOSPatch.cfg file into getMOSPatchcfg variable if the file
-        // exists
-        try {
-            getMOSPatchcfg = readFile(".getMOSPatch.cfg");
-        } catch (IOException e) {
+        public ExecutorService newPool(int threads) {
+            return Executors.newFixedThreadPool(threads);
         }
+    }
 
-        // Populate variables with available platforms
-        // Checking if we need to download platform list from MOS, yes if:
-        // * parameter "reset=yes" was passed, or
-        // * "platforms" parameter was provided (we need to validate the input), or
-        // * the .getMOSPatch.cfg was empty or didn't exist
-        if (checkParam("reset", "yes") || parameters.containsKey("platform") || "".equals(getMOSPatchcfg)) {
-            if (parameters.get("platform") == null) {
-                System.out.println("Platforms and languages need to be reset.");
-                System.out.println("Obtaining the list of platforms and languages:");
+    // java.net.http is used through reflection, this file still compiles and runs on JRE 1.6
+    private static class HttpClientEngine implements HttpEngine {
+        final Object client;
+        final ThreadFactory virtualThreads;     // null before Java 21
+        final Method newRequest;
+        final Method setHeader;
+        final Method requestVersion;
+        final Object http11;
+        final Method buildRequest;
+        final Method send;
+        final Object ofInputStream;
+        final Method statusCode;
+        final Method headers;
+        final Method headerMap;
+        final Method body;
+
+        HttpClientEngine() throws Exception {
+            Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+            Class<?> builderClass = Class.forName("java.net.http.HttpClient$Builder");
+            Class<?> version = Class.forName("java.net.http.HttpClient$Version");
+            Class<?> redirect = Class.forName("java.net.http.HttpClient$Redirect");
+            Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+            Class<?> requestBuilderClass = Class.forName("java.net.http.HttpRequest$Builder");
+            Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+
+            Object builder = clientClass.getMethod("newBuilder").invoke(null);
+            builderClass.getMethod("version", version).invoke(builder, version.getField("HTTP_2").get(null));
+            builderClass.getMethod("followRedirects", redirect).invoke(builder, redirect.getField("NEVER").get(null));
+            // the cookie manager can be replaced after the client is built
+            builderClass.getMethod("cookieHandler", CookieHandler.class).invoke(builder, new CookieHandler() {
+                public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) throws IOException {
+                    CookieHandler handler = CookieHandler.getDefault();
+                    return handler == null ? new HashMap<String, List<String>>() : handler.get(uri, requestHeaders);
+                }
 
-                // download the search page into variable s
-                s = downloadString("https://updates.oracle.com/Orion/SavedSearches/switch_to_simple", LIMIT_PAGE_SIZE);
-                // Extract platforms/Languages list
-                Pattern regex = Pattern.compile("<select name=plat_lang.*</select>", Pattern.DOTALL);
-                Matcher regexMatcher = regex.matcher(s);
-                if (regexMatcher.find()) {
-                    for (String oneline : regexMatcher.group(0).split("\\r?\\n")) {
-                        if (oneline.contains("option") && !oneline.contains("selected")) {
-                            if (parameters.get("platform") == null) {
-                                System.out.println(oneline.split("\"")[1] + " - " + oneline.split(">")[1]);
-                            }
-                            // Put the downloaded platform codes and descriptions into the "platforms" Map
-                            platforms.put(oneline.split("\"")[1], oneline.split(">")[1]);
-                        }
+                public void put(URI uri, Map<String, List<String>> responseHeaders) throws IOException {
+                    CookieHandler handler = CookieHandler.getDefault();
+                    if (handler != null) {
+                        handler.put(uri, responseHeaders);
                     }
                 }
-                // Ask inputs if "platforms" parameter was not specified, and remove the
-                // parameter. SO a new value was asked if the inputs validation fails
-                System.out.println();
-                Console console = System.console();
-                if (parameters.get("platform") == null) {
-                    listPlatforms = console.readLine("Enter Comma separated platforms to list: ");
-                } else {
-                    listPlatforms = parameters.get("platform");
-                    System.out.println("Enter Comma separated platforms to list: " + listPlatforms);
-                    parameters.remove("platform");
-                }
-                // check the inputs as many times as necessary
-                while (!checkInputs(listPlatforms, platforms)) {
-                    System.out.println(" ERROR: Unparseable inputs. Try Again.");
-                    listPlatforms = console.readLine("Enter Comma separated platforms to list:");
+            });
+            ThreadFactory factory = null;
+            try {
+                Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+                factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(ofVirtual);
+                builderClass.getMethod("executor", Executor.class).invoke(builder,
+                        Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+            } catch (Exception e) {
+                // before Java 21 (or a preview of virtual threads that isn't enabled) the client has its own pool
+                factory = null;
+            }
+            virtualThreads = factory;
+            client = builderClass.getMethod("build").invoke(builder);
+
+            newRequest = requestClass.getMethod("newBuilder", URI.class);
+            setHeader = requestBuilderClass.getMethod("setHeader", String.class, String.class);
+            requestVersion = requestBuilderClass.getMethod("version", version);
+            http11 = version.getField("HTTP_1_1").get(null);
+            buildRequest = requestBuilderClass.getMethod("build");
+            send = clientClass.getMethod("send", requestClass, Class.forName("java.net.http.HttpResponse$BodyHandler"));
+            ofInputStream = Class.forName("java.net.http.HttpResponse$BodyHandlers").getMethod("ofInputStream").invoke(null);
+            statusCode = responseClass.getMethod("statusCode");
+            headers = responseClass.getMethod("headers");
+            headerMap = Class.forName("java.net.http.HttpHeaders").getMethod("map");
+            body = responseClass.getMethod("body");
+        }
+
+        private static Object invoke(Method method, Object target, Object... args) throws IOException {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
                 }
+                throw new IOException(String.valueOf(e.getCause()));
+            } catch (IllegalAccessException e) {
+                throw new IOException(e.toString());
+            }
+        }
 
-                // Write the configuration to the .getMOSPatch.cfg file
-                PrintWriter writer = new PrintWriter(".getMOSPatch.cfg", "UTF-8");
-                for (String r : listPlatforms.split(",")) {
-                    configuredPlatforms.put(r, platforms.get(r));
-                    writer.println(r + ";" + platforms.get(r));
+        // the first value of a header, the names in HttpHeaders.map() are case insensitive
+        private static String header(Map<?, ?> headers, String name) {
+            List<?> values = (List<?>) headers.get(name);
+            return values == null || values.isEmpty() ? null : String.valueOf(values.get(0));
+        }
+
+        public PageResponse get(URL url, boolean authorization, String urlClass) throws IOException {
+            Exchange ex = new Exchange();
+            ex.urlClass = urlClass;
+            ex.host = url.getHost();
+            InputStream in;
+            Map<?, ?> responseHeaders;
+            try {
+                Object request;
+                try {
+                    request = invoke(newRequest, null, url.toURI());
+                } catch (URISyntaxException e) {
+                    throw new IOException("invalid URL " + url + ": " + e.getMessage());
                 }
-                writer.flush();
-                writer.close();
-            } else {
-                for (String r : parameters.get("platform").split(",")) {
-                    configuredPlatforms.put(r, "Platform " + r);
+                if (authorization) {
+                    invoke(setHeader, request, "Authorization", "Basic " + encode(username + ":" + password));
+                }
+                // HTTP/2 is negotiated in the TLS handshake, a plain http server (mosurl=) would only be asked
+                // to upgrade every new connection
+                if ("http".equals(url.getProtocol())) {
+                    invoke(requestVersion, request, http11);
                 }
+                Object response = invoke(send, client, invoke(buildRequest, request), ofInputStream);
+                // the connection (and the TLS handshake) isn't timed separately
+                ex.ttfb = System.nanoTime() - ex.start;
+                ex.status = (Integer) invoke(statusCode, response);
+                responseHeaders = (Map<?, ?>) invoke(headerMap, invoke(headers, response));
+                in = (InputStream) invoke(body, response);
+            } catch (IOException e) {
+                ex.finish(0);
+                throw e;
             }
-            // if the config file existed, simply read the inputs from it.
-        } else {
-            for (String r : getMOSPatchcfg.split("\\r?\\n")) {
-                configuredPlatforms.put(r.split(";")[0], r.split(";")[1]);
+            if (ex.status >= 500 || ex.status == 429) {
+                in.close();
+                throw transientError(ex, header(responseHeaders, "Retry-After"));
             }
+            PageResponse response = new PageResponse();
+            response.exchange = ex;
+            response.url = url;
+            response.status = ex.status;
+            response.location = header(responseHeaders, "Location");
+            response.contentType = header(responseHeaders, "Content-Type");
+            if (response.status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                in.close();
+            } else {
+                response.body = in;
+            }
+            return response;
         }
-        // Output the configured platforms.
-        System.out.println("\nWe're going to download patches for the following Platforms/Languages:");
-        for (Map.Entry<String, String> entry : configuredPlatforms.entrySet()) {
-            System.out.println(" " + entry.getKey() + " - " + entry.getValue());
+
+        public ExecutorService newPool(int threads) {
+            return virtualThreads == null ? Executors.newFixedThreadPool(threads)
+                    : Executors.newFixedThreadPool(threads, virtualThreads);
         }
     }
 
-    // this method prepares the list of file download URLs
-    private static void buildDLFileList(String patch, String regx) throws IOException {
-        String dlPatchHTML = "", dlPatchHTML2 = "", patchSelector = "";
-        boolean pwdProtected;
-        Pattern regex2;
-        Matcher regexMatcher2;
+    // maxrate=<KB/s>: all downloads together take their bytes from this token bucket. The rate can be
+    // changed while getMOSPatch runs by writing the new value (KB/s, 0 = unlimited) in the ratefile.
+    private static class RateLimiter {
+        private volatile long rate;         // bytes per second, 0 = unlimited
+        private volatile File controlFile;
+        private volatile long nextCheck;
+        private long controlFileModified;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        void setRate(long bytesPerSecond) {
+            String message = null;
+            synchronized (this) {
+                if (rate != bytesPerSecond && bytesPerSecond > 0) {
+                    message = "Download rate is limited to " + bytesPerSecond / 1024 + "KB/s";
+                } else if (rate > 0 && bytesPerSecond <= 0) {
+                    message = "Download rate is not limited";
+                }
+                rate = Math.max(0, bytesPerSecond);
+                tokens = Math.min(tokens, rate);
+            }
+            // the ratefile may change it in the middle of a download, the progress lines are redrawn below it
+            if (message != null) {
+                progress.println(message);
+            }
+        }
 
-        // Temporary variables are reset
-        int patchFileListCounter = 0;
-        // Iterate through the list of platforms and languages
-        for (Map.Entry<String, String> platform : configuredPlatforms.entrySet()) {
-            // keeps the password protection status
-            pwdProtected = false;
-            patchFileList.clear();
-            patchFileListCounter = 0;
-            System.out.println("\nProcessing patch " + patch + " for " + platform.getValue() + " and applying regexp "
-                    + regx + " to the filenames:");
-
-            // Submit the patch+platform combination using the SimpleSearch form in MOS and
-            // read it into variable dlPatchHTML
-            dlPatchHTML = downloadString(
-                    "https://updates.oracle.com/Orion/SimpleSearch/process_form?search_type=patch&patch_number=" + patch
-                            + "&plat_lang=" + platform.getKey(),
-                    LIMIT_PAGE_SIZE);
-
-            // Look for file download URL pattern in the retrieved HTML and collect it in
-            // the PatchFileList
-            Pattern regex = Pattern.compile("https://.+?Download/process_form/[^\"]*.zip[^\"]*");
-            Matcher regexMatcher = regex.matcher(dlPatchHTML);
-            while (regexMatcher.find()) {
-                for (String oneline : regexMatcher.group(0).split("\\r?\\n")) {
-                    if (oneline.split("process_form/")[1].split(".zip")[0].matches(regx)) {
-                        patchFileList.put(++patchFileListCounter, oneline);
+        void setControlFile(String filename) {
+            controlFile = filename == null ? null : new File(filename);
+            readControlFile();
+        }
+
+        private void readControlFile() {
+            File f = controlFile;
+            nextCheck = System.currentTimeMillis() + 1000;
+            if (f == null || !f.exists() || f.lastModified() == controlFileModified) {
+                return;
+            }
+            controlFileModified = f.lastModified();
+            try {
+                setRate(Long.parseLong(readFile(f.getPath()).trim()) * 1024);
+            } catch (Exception e) {
+                System.out.println("warning: can't read the rate from " + f.getPath());
+            }
+        }
+
+        // takes the bytes from the bucket, and waits if there aren't enough tokens
+        void acquire(int bytes) {
+            // the control file is checked at most once a second
+            if (controlFile != null && System.currentTimeMillis() > nextCheck) {
+                synchronized (this) {
+                    if (System.currentTimeMillis() > nextCheck) {
+                        readControlFile();
                     }
                 }
             }
-            // Set the flag if password protected files were detected
-            if (dlPatchHTML.contains("Download Password Protected Patch")) {
-                pwdProtected = true;
+            if (rate == 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                // the bucket holds at most one second worth of tokens
+                tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+                last = now;
+                tokens -= bytes;
+                wait = tokens < 0 ? (long) (-tokens * 1000 / rate) : 0;
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static final RateLimiter rateLimiter = new RateLimiter();
+
+    // A failure that is likely to go away if the request is repeated: a transfer cut in the middle, or an
+    // HTTP 5xx/429 response (with the Retry-After the server asked for, in ms, or -1).
+    private static class TransientIOException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfter;
+
+        TransientIOException(String message, long retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    // retries=<n>: page requests and file transfers that fail with a transient error (see isTransient) are
+    // repeated up to n times, waiting retrydelay=<ms> * 2^(attempt - 1) (at most a minute, half of it
+    // random, so the workers don't all come back at the same moment) or as long as Retry-After asks.
+    // A transfer continues from its .part file. After "breaker" consecutive failures of the requests to a
+    // host, no worker sends anything to it for breakerpause seconds; each further failure before the first
+    // success pauses it again. The outcome is summarized by report() at the end of the run.
+    private static class Retry {
+        private int retries = 3;
+        private long delay = 1000;
+        private int threshold = 5;
+        private long pause = 60000;
+        final Random random = new Random();
+        // host -> consecutive failures, and until when the requests to the host are paused
+        private final Map<String, Integer> failures = new HashMap<String, Integer>();
+        private final Map<String, Long> pausedUntil = new HashMap<String, Long>();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final Map<String, Integer> retried = new ConcurrentHashMap<String, Integer>();
+        final Map<String, String> failed = new ConcurrentHashMap<String, String>();
+
+        void configure() {
+            retries = Math.max(0, intParam("retries", retries));
+            delay = Math.max(1, intParam("retrydelay", (int) delay));
+            threshold = Math.max(1, intParam("breaker", threshold));
+            pause = Math.max(1, intParam("breakerpause", (int) (pause / 1000))) * 1000L;
+        }
+
+        <T> T call(String what, String url, Callable<T> action) throws IOException {
+            String host = hostOf(url);
+            for (int attempt = 0;; attempt++) {
+                waitForHost(host);
+                try {
+                    T result = action.call();
+                    success(host);
+                    succeeded.incrementAndGet();
+                    return result;
+                } catch (Exception e) {
+                    IOException error = e instanceof IOException ? (IOException) e : new IOException(String.valueOf(e));
+                    if (!isTransient(error)) {
+                        failed.put(what, String.valueOf(error.getMessage()));
+                        throw error;
+                    }
+                    failure(host);
+                    if (attempt >= retries) {
+                        failed.put(what, error.getMessage() + " (after " + (attempt + 1) + " attempts)");
+                        throw error;
+                    }
+                    retried.put(what, attempt + 1);
+                    long wait = Math.min(60000, delay << Math.min(attempt, 16));
+                    wait = wait / 2 + (long) (random.nextDouble() * wait / 2);
+                    if (error instanceof TransientIOException && ((TransientIOException) error).retryAfter > wait) {
+                        wait = ((TransientIOException) error).retryAfter;
+                    }
+                    // this failure may have opened the breaker, the next attempt waits for it as well
+                    wait = Math.max(wait, pausedFor(host));
+                    progress.println("WARNING: " + what + " failed (" + error.getMessage() + "), attempt "
+                            + (attempt + 2) + " of " + (retries + 1) + " in " + wait / 1000.0 + "s");
+                    sleep(wait);
+                }
+            }
+        }
+
+        static boolean isTransient(IOException e) {
+            return e instanceof TransientIOException || e instanceof SocketException || e instanceof SocketTimeoutException
+                    || e instanceof EOFException || (e.getMessage() != null && e.getMessage().contains("Premature EOF"));
+        }
+
+        private static String hostOf(String url) {
+            try {
+                return new URL(url).getHost();
+            } catch (MalformedURLException e) {
+                return url;
+            }
+        }
+
+        private void waitForHost(String host) throws IOException {
+            long wait = pausedFor(host);
+            if (wait > 0) {
+                sleep(wait);
+            }
+        }
+
+        // how long the requests to the host are still paused by the breaker
+        private synchronized long pausedFor(String host) {
+            Long until = pausedUntil.get(host);
+            return until == null ? 0 : Math.max(0, until - System.currentTimeMillis());
+        }
+
+        private synchronized void success(String host) {
+            failures.remove(host);
+            pausedUntil.remove(host);
+        }
+
+        private synchronized void failure(String host) {
+            Integer count = failures.get(host);
+            count = count == null ? 1 : count + 1;
+            failures.put(host, count);
+            if (count >= threshold) {
+                pausedUntil.put(host, System.currentTimeMillis() + pause);
+                progress.println("WARNING: " + count + " consecutive failures of " + host + ", pausing all requests to it for "
+                        + pause / 1000 + "s");
+            }
+        }
+
+        private static void sleep(long ms) throws IOException {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        // what succeeded, what needed more than one attempt and what failed
+        void report() {
+            if (retried.isEmpty() && failed.isEmpty()) {
+                return;
+            }
+            System.out.println("\nRequests: " + succeeded.get() + " succeeded (" + retried.size() + " retried), "
+                    + failed.size() + " failed");
+            for (Map.Entry<String, Integer> r : new TreeMap<String, Integer>(retried).entrySet()) {
+                if (!failed.containsKey(r.getKey())) {
+                    System.out.println(" RETRIED: " + r.getKey() + " (" + (r.getValue() + 1) + " attempts)");
+                }
+            }
+            for (Map.Entry<String, String> f : new TreeMap<String, String>(failed).entrySet()) {
+                System.out.println(" FAILED: " + f.getKey() + " (" + f.getValue() + ")");
+            }
+        }
+    }
+
+    private static final Retry retry = new Retry();
+
+    // The progress of the running downloads is displayed by a single renderer thread, the transfers only
+    // add the bytes they receive to their counter. Every PROGRESS_REFRESH ms the renderer samples the counters
+    // and redraws one line per file and a total line (MB, current and average rate, ETA). If stdout isn't a
+    // terminal, or on Windows where the console may not understand ANSI escapes, the same lines are printed
+    // as plain log lines every PROGRESS_LOG_INTERVAL ms instead. silent=yes disables the display, only the
+    // line printed when a file is done remains.
+    private static class Transfer {
+        final String name;
+        final long resumed;         // bytes downloaded by a previous run
+        final long length;          // -1 if the size is unknown
+        final AtomicLong received;  // bytes received by this run
+        final long started = System.currentTimeMillis();
+        // the samples are only used by the renderer thread
+        long sampled;
+        long sampleTime = started;
+        double rate;                // bytes per second
+
+        Transfer(String name, long resumed, long length, AtomicLong received) {
+            this.name = name;
+            this.resumed = resumed;
+            this.length = length;
+            this.received = received;
+        }
+    }
+
+    private static class Progress implements Runnable {
+        private final List<Transfer> active = new CopyOnWriteArrayList<Transfer>();
+        private Thread renderer;
+        private boolean tty;
+        private int drawnLines;
+        private int iterator;
+        private long nextLog;
+
+        Transfer start(String name, long resumed, long length, AtomicLong received) {
+            Transfer t = new Transfer(name, resumed, length, received);
+            active.add(t);
+            synchronized (this) {
+                if (renderer == null && !checkParam("silent", "yes")) {
+                    tty = System.console() != null && !System.getProperty("os.name").startsWith("Windows");
+                    nextLog = System.currentTimeMillis() + PROGRESS_LOG_INTERVAL;
+                    renderer = new Thread(this, "getMOSPatch progress");
+                    renderer.setDaemon(true);
+                    renderer.start();
+                }
+            }
+            return t;
+        }
+
+        // removes the transfer from the display and prints its final line
+        void finish(Transfer t, String line) {
+            active.remove(t);
+            println(line);
+        }
+
+        // prints a line above the progress display
+        synchronized void println(String line) {
+            StringBuilder sb = new StringBuilder();
+            erase(sb);
+            sb.append(line).append('\n');
+            if (tty) {
+                draw(sb, System.currentTimeMillis());
+            }
+            System.out.print(sb);
+            System.out.flush();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(PROGRESS_REFRESH);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                for (Transfer t : active) {
+                    long received = t.received.get();
+                    double rate = (received - t.sampled) * 1000.0 / Math.max(1, now - t.sampleTime);
+                    // smoothed, so the rate and the ETA don't jump around between the samples
+                    t.rate = t.sampled == 0 ? rate : 0.7 * t.rate + 0.3 * rate;
+                    t.sampled = received;
+                    t.sampleTime = now;
+                }
+                synchronized (this) {
+                    StringBuilder sb = new StringBuilder();
+                    if (tty) {
+                        erase(sb);
+                        draw(sb, now);
+                    } else if (now >= nextLog) {
+                        draw(sb, now);
+                        nextLog = now + PROGRESS_LOG_INTERVAL;
+                    }
+                    System.out.print(sb);
+                    System.out.flush();
+                }
+            }
+        }
+
+        private void erase(StringBuilder sb) {
+            if (drawnLines > 0) {
+                // cursor up to the first line of the display and clear to the end of the screen
+                sb.append("\033[").append(drawnLines).append("A\r\033[J");
+                drawnLines = 0;
+            }
+        }
+
+        private void draw(StringBuilder sb, long now) {
+            long received = 0;
+            long total = 0;
+            long length = 0;
+            long remaining = 0;
+            double rate = 0;
+            long started = now;
+            int lines = 0;
+            for (Transfer t : active) {
+                long r = t.received.get();
+                sb.append(" Downloading ").append(t.name).append(": ");
+                line(sb, t.resumed + r, t.length, t.rate, r * 1000 / Math.max(1, now - t.started),
+                        t.length >= 0 ? t.length - t.resumed - r : -1);
+                lines++;
+                received += r;
+                total += t.resumed + r;
+                rate += t.rate;
+                started = Math.min(started, t.started);
+                length = length < 0 || t.length < 0 ? -1 : length + t.length;
+                remaining = remaining < 0 || t.length < 0 ? -1 : remaining + t.length - t.resumed - r;
+            }
+            if (lines > 1) {
+                sb.append(pchar[iterator++ % 4]).append(" Total of ").append(lines).append(" files: ");
+                line(sb, total, length, rate, received * 1000 / Math.max(1, now - started), remaining);
+                lines++;
+            }
+            if (tty) {
+                drawnLines = lines;
+            }
+        }
+
+        private static void line(StringBuilder sb, long done, long length, double rate, long average, long remaining) {
+            sb.append(done / 1024 / 1024).append("MB");
+            if (length >= 0) {
+                sb.append(" of ").append(length / 1024 / 1024).append("MB");
+            }
+            sb.append(" at ").append((long) rate / 1024).append("KB/s (average ").append(average / 1024)
+                    .append("KB/s)");
+            if (remaining >= 0 && rate > 0) {
+                long eta = (long) (remaining / rate);
+                sb.append(", ETA ").append(eta / 60).append("m").append(String.format("%02d", eta % 60)).append("s");
+            }
+            sb.append('\n');
+        }
+    }
+
+    private static final Progress progress = new Progress();
+
+    // the .part files downloadFile is writing from the start, the first resumed + received bytes can be read
+    private static final Map<String, Transfer> growingFiles = new ConcurrentHashMap<String, Transfer>();
+
+    // What is known about a file before it's downloaded
+    private static class RemoteFile {
+        URL url;            // the final URL after all redirects
+        long length = -1;   // -1 if the size is unknown
+        boolean ranges;     // true if the server returned a partial response to a Range request
+        String etag;
+        String lastModified;
+        final long probed = System.currentTimeMillis();
+    }
+
+    // Requests the first byte of the file to find out its final URL, size and if Range requests work
+    private static RemoteFile probe(String url) throws IOException {
+        RemoteFile rf = new RemoteFile();
+        HttpURLConnection con = openConnection(url);
+        con.setRequestProperty("Range", "bytes=0-0");
+        Exchange ex = track(con, "probe");
+        int resCode = ex.status;
+        rf.url = con.getURL();
+        rf.etag = con.getHeaderField("ETag");
+        rf.lastModified = con.getHeaderField("Last-Modified");
+        String contentRange = con.getHeaderField("Content-Range");
+        if (resCode == HttpURLConnection.HTTP_PARTIAL && contentRange != null && contentRange.contains("/")) {
+            try {
+                rf.length = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+                rf.ranges = true;
+            } catch (NumberFormatException e) {
+                // "bytes 0-0/*" - the size is unknown
+            }
+            con.getInputStream().close();
+        } else if (resCode == HttpURLConnection.HTTP_OK && con.getHeaderField("Content-Length") != null) {
+            rf.length = Long.parseLong(con.getHeaderField("Content-Length"));
+        }
+        con.disconnect();
+        ex.finish(0);
+        return rf;
+    }
+
+    // Files are downloaded into <filename>.part and renamed when complete. The sidecar <filename>.part.info
+    // holds the URL, size and validators of the file, so an interrupted download continues where it stopped
+    // if the file on the server hasn't changed.
+    // segments=N: large files are split in N byte ranges that are downloaded at the same time and
+    // written directly at their offsets in the .part file. If the server doesn't support
+    // ranges the file is downloaded as usual.
+    // A transfer that fails with a transient error is repeated by the retry policy, continuing from the .part file.
+    private static void transferFile(final String url, final String filename, final boolean interactive)
+            throws IOException {
+        retry.call(new File(filename).getName(), url, new Callable<Object>() {
+            public Object call() throws IOException {
+                transferFile(url, filename, interactive, true);
+                return null;
+            }
+        });
+    }
+
+    private static void transferFile(String url, String filename, boolean interactive, boolean retryOnMismatch)
+            throws IOException {
+        File part = new File(filename + ".part");
+        File info = new File(filename + ".part.info");
+        File target = new File(filename);
+        // the probe of the download plan is used once, if it's recent enough (the final URLs can expire)
+        RemoteFile rf = probedFiles.remove(url);
+        if (rf == null || System.currentTimeMillis() - rf.probed > PROBE_TTL) {
+            rf = probe(url);
+        }
+        String validators = rf.length + ";" + rf.etag + ";" + rf.lastModified;
+
+        // sync=yes: the file is skipped if it's already there and it's the same as on MOS
+        if (checkParam("sync", "yes") && target.exists() && target.length() == rf.length) {
+            String known = readManifest(target);
+            if (known == null || known.startsWith(validators)) {
+                progress.println((interactive ? " " : "") + target.getName() + " is up to date");
+                if (known == null) {
+                    updateManifest(target, validators);
+                }
+                return;
+            }
+        }
+        int segments = segments(rf);
+
+        Properties state = partState(url, rf, segments);
+        Properties previous = previousPartState(part, info, state, rf);
+        boolean resume = previous != null;
+        if (resume) {
+            state = previous;
+        } else if (part.exists() && !part.delete()) {
+            throw new IOException("can't remove " + part.getPath());
+        }
+
+        // store=<dir>: a file that is already in the store is linked as <filename>.stored, only read from the
+        // disk (to check its digest and to extract it) and then renamed into place. It's never the .part file:
+        // a download continuing the .part file would write into the stored file.
+        String stored = resume || store == null ? null : store.find(target.getName(), rf.length, validators, expectedDigests.get(url));
+        File linked = new File(filename + ".stored");
+        if (stored != null) {
+            store.link(stored, linked);
+            if (info.exists() && !info.delete()) {
+                throw new IOException("can't remove " + info.getPath());
+            }
+            progress.println((interactive ? " " : "") + target.getName() + " is linked from the store");
+        } else {
+            // left by a run that stopped while it was checking a stored file
+            linked.delete();
+            savePartInfo(state, info);
+        }
+        File complete = stored != null ? linked : part;
+
+        Unzipper unzip = checkParam("extract", "yes") && target.getName().endsWith(".zip") ? new Unzipper(target) : null;
+        OutputStream tee = unzip == null ? null : unzip.out;
+        String digest;
+        try {
+            if (stored != null) {
+                MessageDigest md = newDigest();
+                digestFile(md, linked, rf.length, tee);
+                digest = toHex(md.digest());
+            } else if (segments > 1) {
+                downloadSegmented(rf, part.getPath(), segments, state, info, interactive);
+                // the segments arrive out of order, so the digest is calculated when the file is complete
+                MessageDigest md = newDigest();
+                digestFile(md, part, rf.length, tee);
+                digest = toHex(md.digest());
+            } else {
+                long offset = part.exists() && part.length() <= rf.length ? part.length() : 0;
+                // the previous run could have been interrupted just before the rename
+                if (offset == 0 || offset < rf.length) {
+                    digest = downloadFile(url, part.getPath(), offset, interactive, tee);
+                } else {
+                    MessageDigest md = newDigest();
+                    digestFile(md, part, rf.length, tee);
+                    digest = toHex(md.digest());
+                }
+            }
+        } catch (IOException e) {
+            if (unzip != null) {
+                unzip.abort();
+            }
+            throw e;
+        }
+
+        // the file is downloaded once more if it doesn't match the digest published on MOS, or if it isn't a
+        // valid zip (when it's extracted)
+        String expected = expectedDigests.get(url);
+        String invalid = null;
+        if (expected != null && !expected.equalsIgnoreCase(digest)) {
+            if (unzip != null) {
+                unzip.abort();
+            }
+            invalid = "SHA-256 of " + target.getName() + " is " + digest + ", expected " + expected;
+        } else if (unzip != null) {
+            try {
+                unzip.finish(complete);
+            } catch (ZipException e) {
+                invalid = target.getName() + " can't be extracted: " + e.getMessage();
+            }
+        }
+        if (invalid != null) {
+            complete.delete();
+            info.delete();
+            // the stored file is damaged, it's downloaded and stored again
+            if (stored != null && !store.blob(stored).delete()) {
+                progress.println("warning: can't remove " + store.blob(stored).getPath());
+            }
+            if (retryOnMismatch) {
+                progress.println("WARNING: " + invalid + ", downloading it again");
+                transferFile(url, filename, interactive, false);
+                return;
+            }
+            throw new IOException(invalid);
+        }
+        if (unzip != null) {
+            progress.println((interactive ? " " : "") + "Extracted " + unzip.entries + " files of " + target.getName()
+                    + " into " + unzip.dir.getPath() + (unzip.executables > 0 ? " (" + unzip.executables + " executable)" : ""));
+            // keepzip=no: only the extracted files are kept
+            if (checkParam("keepzip", "no")) {
+                if (!complete.delete() || (info.exists() && !info.delete())) {
+                    progress.println("warning: can't remove " + complete.getPath());
+                }
+                return;
+            }
+        }
+
+        if (target.exists() && !target.delete()) {
+            throw new IOException("can't replace " + filename);
+        }
+        if (!complete.renameTo(target)) {
+            throw new IOException("can't rename " + complete.getPath() + " to " + filename);
+        }
+        if (info.exists() && !info.delete()) {
+            progress.println("warning: can't remove " + info.getPath());
+        }
+        updateManifest(target, validators + ";" + digest);
+        if (store != null) {
+            store.add(target, validators, digest, stored == null);
+        }
+    }
+
+    // the number of byte ranges the file is downloaded in, see segments=N
+    private static int segments(RemoteFile rf) {
+        return rf.ranges ? (int) Math.min(intParam("segments", 1), rf.length / MIN_SEGMENT_SIZE) : 1;
+    }
+
+    // what <filename>.part.info says about the .part file: the file it's part of and how it's downloaded
+    private static Properties partState(String url, RemoteFile rf, int segments) {
+        Properties state = new Properties();
+        state.setProperty("url", url);
+        state.setProperty("length", String.valueOf(rf.length));
+        state.setProperty("etag", String.valueOf(rf.etag));
+        state.setProperty("lastModified", String.valueOf(rf.lastModified));
+        state.setProperty("segments", String.valueOf(segments));
+        return state;
+    }
+
+    // the .part.info of the previous run (with the segments it completed), or null if the .part file can't be
+    // continued: the download is resumed only if it's the same file and it's downloaded the same way
+    private static Properties previousPartState(File part, File info, Properties state, RemoteFile rf) throws IOException {
+        if (!rf.ranges || !part.exists() || !info.exists()) {
+            return null;
+        }
+        Properties previous = new Properties();
+        FileInputStream in = new FileInputStream(info);
+        try {
+            previous.load(in);
+        } finally {
+            in.close();
+        }
+        for (String key : state.stringPropertyNames()) {
+            if (!state.getProperty(key).equals(previous.getProperty(key))) {
+                return null;
+            }
+        }
+        return previous;
+    }
+
+    // extract=yes: the zip is extracted while it's downloaded, into a directory named like the file without
+    // .zip and without the _1of3 suffix of multipart patches, so the parts of a patch end up in one tree
+    // and other releases or platforms of the same patch don't overwrite it. The entries are written into
+    // <file>.zip.extracting and moved into that directory only when the zip is complete and valid, so a failed
+    // download doesn't leave half-written files over the ones extracted before.
+    // The download writes every byte of the file to the pipe (the part downloaded by a previous run, or a
+    // segmented download, is read from the file instead) and this thread extracts the entries from the other
+    // end. ZipInputStream checks the CRC and the size of every entry. If the zip turns out to be invalid, the
+    // rest of the file is still read from the pipe, so the download isn't blocked, and finish() reports it.
+    // The Unix permissions are only stored in the central directory at the end of the zip, so finish() reads
+    // them from the complete file on disk and makes the executable entries (i.e. OPatch/opatch) executable.
+    private static class Unzipper extends Thread {
+        final File dir;
+        final File partDir;
+        final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream out;
+        volatile IOException error;
+        int entries;
+        int executables;
+
+        Unzipper(File zip) throws IOException {
+            super("getMOSPatch unzip " + zip.getName());
+            dir = new File(zip.getAbsoluteFile().getParentFile(), zip.getName().replaceAll("(_\\d+of\\d+)?\\.zip$", ""));
+            partDir = new File(zip.getAbsolutePath() + ".extracting");
+            out = new PipedOutputStream(in);
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                // left by a failed download, the zip is always extracted from the first byte
+                deleteTree(partDir);
+                String root = partDir.getCanonicalPath() + File.separator;
+                ZipInputStream zip = new ZipInputStream(in);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    File f = new File(partDir, entry.getName());
+                    if (!f.getCanonicalPath().startsWith(root)) {
+                        throw new ZipException("entry " + entry.getName() + " is outside of " + dir.getPath());
+                    }
+                    if (entry.isDirectory()) {
+                        if (!f.isDirectory() && !f.mkdirs() && !f.isDirectory()) {
+                            throw new IOException("can't create " + f.getPath());
+                        }
+                        continue;
+                    }
+                    if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs() && !f.getParentFile().isDirectory()) {
+                        throw new IOException("can't create " + f.getParentFile().getPath());
+                    }
+                    FileOutputStream file = new FileOutputStream(f);
+                    try {
+                        int bytesRead;
+                        while ((bytesRead = zip.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                            file.write(buffer, 0, bytesRead);
+                        }
+                    } finally {
+                        file.close();
+                    }
+                    if (entry.getTime() != -1) {
+                        f.setLastModified(entry.getTime());
+                    }
+                    entries++;
+                }
+                if (entries == 0) {
+                    throw new ZipException("no entries found, it's not a zip file");
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (Throwable e) {
+                // i.e. an IllegalArgumentException of ZipInputStream for a malformed entry name, the zip must not be
+                // reported as extracted
+                error = new IOException("can't extract " + dir.getName() + " (" + e + ")", e);
+            } finally {
+                // the central directory at the end of the zip (or the rest of an invalid zip) isn't needed
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    while (in.read(buffer, 0, BUFFER_SIZE) != -1) {
+                    }
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        // waits for the last entry, and throws if the zip couldn't be extracted. "zip" is the complete file.
+        void finish(File zip) throws IOException {
+            out.close();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("extraction of " + dir.getPath() + " was interrupted");
+            }
+            if (error != null) {
+                throw error;
+            }
+            executables = setExecutable(zip);
+            // the other parts of a multipart patch may be in the directory already
+            moveTree(partDir, dir);
+        }
+
+        // Every entry of the central directory has the "version made by" and the external attributes. If the
+        // entry was made on Unix (the upper byte of the version is 3), the upper 16 bits of the attributes are
+        // its st_mode. The regular files with an execute bit are made executable, for everyone if the group or
+        // the others may execute them. Returns the number of executable files.
+        private int setExecutable(File zip) throws IOException {
+            String root = partDir.getCanonicalPath() + File.separator;
+            RandomAccessFile raf = new RandomAccessFile(zip, "r");
+            int count = 0;
+            try {
+                // the end of central directory record (22 bytes and a comment of up to 64KB) is at the end
+                long length = raf.length();
+                int tail = (int) Math.min(length, 22 + 0xFFFF);
+                byte[] end = new byte[tail];
+                raf.seek(length - tail);
+                raf.readFully(end);
+                int eocd = tail - 22;
+                while (eocd >= 0 && le(end, eocd, 4) != 0x06054b50L) {
+                    eocd--;
+                }
+                if (eocd < 0) {
+                    throw new ZipException("the end of the central directory of " + zip.getName() + " is not found");
+                }
+                long entries = le(end, eocd + 10, 2);
+                long offset = le(end, eocd + 16, 4);
+                // zip64 (the files over 4GB or with more than 65535 entries): the ZIP64 end of central directory
+                // locator is just before the record, and points to the ZIP64 end of central directory record
+                if ((entries == 0xFFFF || offset == 0xFFFFFFFFL) && eocd >= 20 && le(end, eocd - 20, 4) == 0x07064b50L) {
+                    byte[] record = new byte[56];
+                    raf.seek(le(end, eocd - 20 + 8, 8));
+                    raf.readFully(record);
+                    if (le(record, 0, 4) != 0x06064b50L) {
+                        throw new ZipException("the ZIP64 end of the central directory of " + zip.getName() + " is not found");
+                    }
+                    entries = le(record, 32, 8);
+                    offset = le(record, 48, 8);
+                }
+                raf.seek(offset);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel()), BUFFER_SIZE));
+                byte[] header = new byte[46];
+                for (long i = 0; i < entries; i++) {
+                    in.readFully(header);
+                    if (le(header, 0, 4) != 0x02014b50L) {
+                        throw new ZipException("invalid central directory entry in " + zip.getName());
+                    }
+                    byte[] name = new byte[(int) le(header, 28, 2)];
+                    in.readFully(name);
+                    in.skipBytes((int) (le(header, 30, 2) + le(header, 32, 2)));
+                    long mode = le(header, 38, 4) >>> 16;
+                    if (header[5] != 3 || (mode & 0170000) != 0100000 || (mode & 0111) == 0) {
+                        continue;
+                    }
+                    // ZipInputStream decoded the names as UTF-8 too
+                    File f = new File(partDir, new String(name, "UTF-8"));
+                    if (f.isFile() && f.getCanonicalPath().startsWith(root) && f.setExecutable(true, (mode & 011) == 0)) {
+                        count++;
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+            return count;
+        }
+
+        // the little-endian number of "length" bytes at "offset"
+        private static long le(byte[] b, int offset, int length) {
+            long value = 0;
+            for (int i = length - 1; i >= 0; i--) {
+                value = value << 8 | (b[offset + i] & 0xFF);
+            }
+            return value;
+        }
+
+        private static void moveTree(File from, File to) throws IOException {
+            if (!to.isDirectory() && !to.mkdirs() && !to.isDirectory()) {
+                throw new IOException("can't create " + to.getPath());
+            }
+            for (File f : from.listFiles()) {
+                File target = new File(to, f.getName());
+                if (f.isDirectory()) {
+                    moveTree(f, target);
+                } else if ((target.exists() && !target.delete()) || !f.renameTo(target)) {
+                    throw new IOException("can't move " + f.getPath() + " to " + target.getPath());
+                }
+            }
+            if (!from.delete()) {
+                throw new IOException("can't remove " + from.getPath());
+            }
+        }
+
+        private static void deleteTree(File f) throws IOException {
+            File[] files = f.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    deleteTree(child);
+                }
+            }
+            if (f.exists() && !f.delete()) {
+                throw new IOException("can't remove " + f.getPath());
+            }
+        }
+
+        // the download failed, the result of the extraction doesn't matter
+        void abort() {
+            try {
+                out.close();
+                join();
+            } catch (IOException e) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Every directory files are downloaded to has a .getMOSPatch.manifest with the size, ETag,
+    // Last-Modified and SHA-256 of each downloaded file ("size;etag;lastModified;sha256"), sync=yes uses it
+    // and other tools can take the digest from it instead of reading the file again.
+    private static final String MANIFEST_FILE = ".getMOSPatch.manifest";
+    private static final Object manifestLock = new Object();
+
+    private static Properties loadManifest(File dir) throws IOException {
+        Properties manifest = new Properties();
+        File f = new File(dir, MANIFEST_FILE);
+        if (f.exists()) {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                manifest.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return manifest;
+    }
+
+    private static String readManifest(File target) throws IOException {
+        synchronized (manifestLock) {
+            return loadManifest(target.getAbsoluteFile().getParentFile()).getProperty(target.getName());
+        }
+    }
+
+    private static void updateManifest(File target, String value) throws IOException {
+        synchronized (manifestLock) {
+            File dir = target.getAbsoluteFile().getParentFile();
+            Properties manifest = loadManifest(dir);
+            if (value == null) {
+                manifest.remove(target.getName());
+            } else {
+                manifest.setProperty(target.getName(), value);
+            }
+            FileOutputStream out = new FileOutputStream(new File(dir, MANIFEST_FILE));
+            try {
+                manifest.store(out, "getMOSPatch downloaded files: size;etag;lastModified;sha256");
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static void savePartInfo(Properties state, File info) throws IOException {
+        synchronized (state) {
+            FileOutputStream out = new FileOutputStream(info);
+            try {
+                state.store(out, "getMOSPatch partial download");
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // store=<dir>: every downloaded file is kept once in a content-addressed store shared by the staging
+    // directories (i.e. of different environments and quarters), as <dir>/sha256/<2 chars>/<sha256>. The file in
+    // the staging directory is a hard link to it (a copy if the store is on another file system). The files are
+    // found in the store by the SHA-256 published on MOS, or by their name in <dir>/index (name=size;etag;
+    // lastModified;sha256, the same as in the manifest) if the size, ETag and Last-Modified still match what MOS
+    // returns now, and then linked instead of downloaded. <dir>/refs lists every staging directory file linked
+    // to the store, storegc=yes removes the files of the store that none of them uses any more.
+    private static class Store {
+        final File dir;
+        final File indexFile;
+        final File refsFile;
+
+        Store(String path) throws IOException {
+            dir = new File(path);
+            indexFile = new File(dir, "index");
+            refsFile = new File(dir, "refs");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir.getPath());
+            }
+        }
+
+        File blob(String digest) {
+            return new File(new File(new File(dir, "sha256"), digest.substring(0, 2)), digest);
+        }
+
+        // the digest of the stored file that can be used instead of downloading the file, or null
+        String find(String name, long length, String validators, String expectedDigest) throws IOException {
+            String digest = expectedDigest;
+            if (digest == null) {
+                String known = load(indexFile).getProperty(name);
+                if (known == null || !known.startsWith(validators + ";")) {
+                    return null;
+                }
+                digest = known.substring(validators.length() + 1);
+            }
+            digest = digest.toLowerCase(Locale.US);
+            File blob = blob(digest);
+            return length >= 0 && blob.length() == length ? digest : null;
+        }
+
+        // the stored file appears as "link", nothing is copied if the store is on the same file system
+        void link(String digest, File link) throws IOException {
+            File tmp = new File(link.getPath() + ".link");
+            tmp.delete();
+            if (!hardLink(tmp, blob(digest))) {
+                copyFile(blob(digest), tmp);
+            }
+            if ((link.exists() && !link.delete()) || !tmp.renameTo(link)) {
+                tmp.delete();
+                throw new IOException("can't replace " + link.getPath());
+            }
+        }
+
+        // the downloaded file goes into the store, or is replaced by a link to the same content stored before
+        void add(File target, String validators, String digest, boolean downloaded) throws IOException {
+            File blob = blob(digest);
+            synchronized (this) {
+                if (!blob.exists()) {
+                    File tmp = new File(blob.getPath() + ".tmp");
+                    if (!blob.getParentFile().isDirectory() && !blob.getParentFile().mkdirs()) {
+                        throw new IOException("can't create " + blob.getParent());
+                    }
+                    tmp.delete();
+                    if (!hardLink(tmp, target)) {
+                        copyFile(target, tmp);
+                    }
+                    // another process could have stored the same file in the meantime
+                    if (!tmp.renameTo(blob) && !blob.exists()) {
+                        tmp.delete();
+                        throw new IOException("can't create " + blob.getPath());
+                    }
+                    tmp.delete();
+                } else if (downloaded) {
+                    link(digest, target);
+                }
+                update(indexFile, target.getName(), validators + ";" + digest);
+                update(refsFile, target.getAbsolutePath(), digest);
+            }
+        }
+
+        // storegc=yes: the references to files that were removed, replaced or changed are dropped, then the
+        // stored files that aren't referenced any more
+        void gc() throws IOException {
+            Properties refs = load(refsFile);
+            Set<String> used = new HashSet<String>();
+            for (String path : refs.stringPropertyNames()) {
+                File f = new File(path);
+                String digest = refs.getProperty(path);
+                String known = f.exists() ? readManifest(f) : null;
+                if (known != null && known.endsWith(";" + digest) && f.length() == blob(digest).length()) {
+                    used.add(digest);
+                } else {
+                    refs.remove(path);
+                }
+            }
+            long bytes = 0;
+            int removed = 0;
+            File[] dirs = new File(dir, "sha256").listFiles();
+            for (int i = 0; dirs != null && i < dirs.length; i++) {
+                File[] blobs = dirs[i].listFiles();
+                for (int j = 0; blobs != null && j < blobs.length; j++) {
+                    if (!used.contains(blobs[j].getName())) {
+                        long length = blobs[j].length();
+                        if (blobs[j].delete()) {
+                            bytes += length;
+                            removed++;
+                        }
+                    }
+                }
+            }
+            Properties index = load(indexFile);
+            for (String name : index.stringPropertyNames()) {
+                String value = index.getProperty(name);
+                if (!blob(value.substring(value.lastIndexOf(';') + 1)).exists()) {
+                    index.remove(name);
+                }
+            }
+            save(refsFile, refs);
+            save(indexFile, index);
+            System.out.println("Removed " + removed + " files (" + bytes / 1024 / 1024 + "MB) from the store " + dir.getPath()
+                    + ", " + used.size() + " files are used by " + refs.size() + " files in the staging directories.");
+        }
+
+        private static Properties load(File f) throws IOException {
+            Properties p = new Properties();
+            if (f.exists()) {
+                FileInputStream in = new FileInputStream(f);
+                try {
+                    p.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            return p;
+        }
+
+        // written to a temporary file first, as other getMOSPatch processes may be reading it
+        private static void save(File f, Properties p) throws IOException {
+            File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                p.store(out, "getMOSPatch " + f.getName());
+            } finally {
+                out.close();
+            }
+            if ((f.exists() && !f.delete()) || !tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("can't update " + f.getPath());
+            }
+        }
+
+        private static void update(File f, String key, String value) throws IOException {
+            Properties p = load(f);
+            if (!value.equals(p.getProperty(key))) {
+                p.setProperty(key, value);
+                save(f, p);
+            }
+        }
+    }
+
+    private static Store store;
+
+    // java.nio.file.Files.createLink (Java 7+) is called through reflection, this file still compiles for JRE 1.6
+    private static boolean hardLink(File link, File existing) {
+        try {
+            Method toPath = File.class.getMethod("toPath");
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Class.forName("java.nio.file.Files").getMethod("createLink", path, path)
+                    .invoke(null, toPath.invoke(link), toPath.invoke(existing));
+            return true;
+        } catch (Exception e) {
+            // an older JRE, another file system or a file system without hard links
+            return false;
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            FileChannel source = in.getChannel();
+            long position = 0;
+            long length = source.size();
+            while (position < length) {
+                position += source.transferTo(position, length - position, out.getChannel());
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void downloadSegmented(RemoteFile rf, String filename, int segments, final Properties state,
+            final File info, boolean interactive) throws IOException {
+        final AtomicLong fileSize = new AtomicLong();
+        long resumed = 0;
+        long segmentSize = (rf.length + segments - 1) / segments;
+        long tim1 = System.currentTimeMillis();
+
+        String displayName = filename.substring(0, filename.length() - ".part".length());
+        String label = (interactive ? " " : "") + "Downloading " + displayName + " in " + segments + " segments: ";
+        Transfer transfer = null;
+        boolean complete = false;
+
+        RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+        ExecutorService pool = Executors.newFixedThreadPool(segments);
+        try {
+            final FileChannel channel = raf.getChannel();
+            List<Future<Object>> parts = new ArrayList<Future<Object>>();
+            for (int i = 0; i < segments; i++) {
+                final URL segmentURL = rf.url;
+                final long from = i * segmentSize;
+                final long to = Math.min(rf.length, from + segmentSize) - 1;
+                final String segmentKey = "segment." + i;
+                // segments completed by a previous run are not downloaded again
+                if ("done".equals(state.getProperty(segmentKey))) {
+                    resumed += to - from + 1;
+                    continue;
+                }
+                parts.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        downloadRange(segmentURL, channel, from, to, fileSize);
+                        state.setProperty(segmentKey, "done");
+                        savePartInfo(state, info);
+                        return null;
+                    }
+                }));
+            }
+            pool.shutdown();
+
+            // the segments are running in the pool, they all add to the same counter
+            transfer = progress.start(displayName + " (" + segments + " segments)", resumed, rf.length, fileSize);
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < parts.size(); i++) {
+                try {
+                    parts.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("segment of " + displayName + " failed: " + e.getCause());
+                }
+            }
+            channel.force(false);
+            complete = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("download of " + displayName + " was interrupted");
+        } finally {
+            pool.shutdownNow();
+            raf.close();
+            if (transfer != null && !complete) {
+                progress.finish(transfer, label + "stopped at " + (resumed + fileSize.get()) / 1024 / 1024 + "MB");
+            }
+        }
+
+        long tim2 = System.currentTimeMillis();
+        if (tim2 == tim1) {
+            tim2++;
+        }
+        progress.finish(transfer, label + (resumed > 0 ? "(resumed from " + resumed / 1024 / 1024 + "MB) " : "")
+                + (resumed + fileSize.get()) / 1024 / 1024 + "MB at average speed of "
+                + fileSize.get() / (tim2 - tim1) + "KB/s - DONE!");
+    }
+
+    // downloads bytes from..to (inclusive) of the URL and writes them at the same offset in the file
+    private static void downloadRange(URL url, FileChannel channel, long from, long to, AtomicLong fileSize)
+            throws IOException {
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestProperty("Range", "bytes=" + from + "-" + to);
+        Exchange ex = track(con, "segment");
+        if (ex.status != HttpURLConnection.HTTP_PARTIAL) {
+            con.disconnect();
+            ex.finish(0);
+            throw new IOException("Range request returned HTTP " + ex.status);
+        }
+        InputStream in = con.getInputStream();
+        ReadableByteChannel source = Channels.newChannel(in);
+        long position = from;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MIN_TRANSFER_BUFFER);
+            int bytesRead;
+            while (position <= to && (bytesRead = source.read(buffer)) != -1) {
+                rateLimiter.acquire(bytesRead);
+                buffer.flip();
+                buffer.limit((int) Math.min(bytesRead, to - position + 1));
+                while (buffer.hasRemaining()) {
+                    int written = channel.write(buffer, position);
+                    position += written;
+                    fileSize.addAndGet(written);
+                }
+                buffer = growBuffer(buffer, bytesRead);
+            }
+            if (position <= to) {
+                throw new TransientIOException("connection closed at byte " + position + " of range " + from + "-" + to, -1);
+            }
+        } finally {
+            in.close();
+            ex.finish(position - from);
+        }
+    }
+
+    // method to download a file
+    private static String downloadFile(String url, String filename) throws IOException {
+        return downloadFile(url, filename, 0, true);
+    }
+
+    private static String downloadFile(String url, String filename, long offset, boolean interactive)
+            throws IOException {
+        return downloadFile(url, filename, offset, interactive, null);
+    }
+
+    // The progress is displayed by the Progress renderer, the loop only counts the bytes received. When the
+    // file is done a single line is printed, indented if interactive=true (files downloaded one at a time).
+    // If offset > 0 the download continues from that byte, the file holds exactly the bytes received so far.
+    // Returns the SHA-256 digest of the whole file, it's calculated while the file is downloaded.
+    // The response is read through a channel into a direct buffer, and the same buffer is written to the
+    // FileChannel, so the file write doesn't copy it into a temporary direct buffer of its own. The file is
+    // synced to disk once, when the download completes. If "tee" is given, every byte of the file (including
+    // the part downloaded before) is written to it too.
+    private static String downloadFile(String url, String filename, long offset, boolean interactive,
+            OutputStream tee) throws IOException {
+        AtomicLong fileSize = new AtomicLong();
+        long tim1 = System.currentTimeMillis();
+        long tim2;
+        String displayName = filename.endsWith(".part") ? filename.substring(0, filename.length() - 5) : filename;
+
+        HttpURLConnection connection = openConnection(url);
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        // connection.setFollowRedirects(true);
+        Exchange ex = track(connection, "download");
+        // if the server ignored the Range header the file is downloaded from the beginning
+        if (offset > 0 && ex.status != HttpURLConnection.HTTP_PARTIAL) {
+            offset = 0;
+        }
+        long expected = -1;
+        if (connection.getHeaderField("Content-Length") != null) {
+            expected = offset + Long.parseLong(connection.getHeaderField("Content-Length"));
+        }
+
+        MessageDigest digest = newDigest();
+        if (offset > 0) {
+            digestFile(digest, new File(filename), offset, tee);
+        }
+
+        InputStream in = connection.getInputStream();
+        ReadableByteChannel source = Channels.newChannel(in);
+        FileOutputStream out = null;
+        long position = offset;
+        boolean complete = false;
+        Transfer transfer = progress.start(displayName, offset, expected, fileSize);
+        growingFiles.put(filename, transfer);
+        try {
+            out = new FileOutputStream(filename, offset > 0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MIN_TRANSFER_BUFFER);
+            byte[] teeBuffer = tee == null ? null : new byte[MAX_TRANSFER_BUFFER];
+            int bytesRead = -1;
+            // The download is happening here
+            tim1 = System.currentTimeMillis();
+            while ((bytesRead = source.read(buffer)) != -1) {
+                rateLimiter.acquire(bytesRead);
+                buffer.flip();
+                digest.update(buffer);
+                if (tee != null) {
+                    buffer.rewind();
+                    buffer.get(teeBuffer, 0, bytesRead);
+                    tee.write(teeBuffer, 0, bytesRead);
+                }
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer);
+                }
+                fileSize.addAndGet(bytesRead);
+                buffer = growBuffer(buffer, bytesRead);
+            }
+            if (expected >= 0 && position != expected) {
+                throw new TransientIOException("connection closed at byte " + position + " of " + expected, -1);
+            }
+            channel.force(false);
+            complete = true;
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } finally {
+                in.close();
+                ex.finish(fileSize.get());
+                growingFiles.remove(filename);
+                if (!complete) {
+                    progress.finish(transfer, (interactive ? " " : "") + "Downloading " + displayName + ": stopped at "
+                            + position / 1024 / 1024 + "MB");
+                }
+            }
+        }
+        // Download completed, post the final stats
+        tim2 = System.currentTimeMillis();
+        if (tim2 == tim1) {
+            tim2++;
+        }
+        progress.finish(transfer, (interactive ? " " : "") + "Downloading " + displayName + ": "
+                + (offset > 0 ? "(resumed from " + offset / 1024 / 1024 + "MB) " : "")
+                + (offset + fileSize.get()) / 1024 / 1024 + "MB at average speed of " + fileSize.get() / (tim2 - tim1)
+                + "KB/s - DONE!");
+        return toHex(digest.digest());
+    }
+
+    // A read that fills the whole buffer means more data was waiting, so the next read gets a larger buffer
+    // (up to MAX_TRANSFER_BUFFER): fast transfers need fewer reads and writes, slow ones keep a small buffer.
+    // Returns the buffer cleared for the next read.
+    private static ByteBuffer growBuffer(ByteBuffer buffer, int bytesRead) {
+        if (bytesRead == buffer.capacity() && buffer.capacity() < MAX_TRANSFER_BUFFER) {
+            return ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // adds the first "length" bytes of the file to the digest
+    private static void digestFile(MessageDigest digest, File file, long length) throws IOException {
+        digestFile(digest, file, length, null);
+    }
+
+    // the bytes read are also written to "tee" if it isn't null
+    private static void digestFile(MessageDigest digest, File file, long length, OutputStream tee) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while (length > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(BUFFER_SIZE, length))) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                if (tee != null) {
+                    tee.write(buffer, 0, bytesRead);
+                }
+                length -= bytesRead;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    // reads a file and returns a string
+    private static String readFile(String fileName) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(fileName));
+        StringBuilder sb = new StringBuilder();
+        String line = br.readLine();
+        while (line != null) {
+            sb.append(line).append("\n");
+            line = br.readLine();
+        }
+        br.close();
+        return sb.toString();
+    }
+
+    // downloads from URL into a String
+    // The page is kept in memory and decoded using the charset the server declared, nothing is written to
+    // disk. The search and platform pages don't use this, they go through extractPage.
+    private static String downloadString(final String url) throws IOException {
+        return retry.call(url, url, new Callable<String>() {
+            public String call() throws IOException {
+                return downloadStringOnce(url);
+            }
+        });
+    }
+
+    private static String downloadStringOnce(String url) throws IOException {
+        PageResponse response = openPage(url, pageClass(url));
+        Exchange ex = response.exchange;
+        InputStream in = response.body();
+        ByteArrayOutputStream page = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int bytesRead;
+        int iterator = 0;
+        boolean silent = checkParam("silent", "yes");
+        try {
+            while ((bytesRead = in.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                page.write(buffer, 0, bytesRead);
+                // just show a rotating char as a sign that something's ongoing, unless silent=yes
+                if (!silent) {
+                    System.out.print((iterator == 0 ? " " : "\b") + pchar[(iterator++ % 4)]);
+                }
+            }
+        } finally {
+            in.close();
+            ex.finish(page.size());
+        }
+        if (!silent && iterator > 0) {
+            System.out.print("\b\b");
+        }
+        return page.toString(pageCharset(response.contentType));
+    }
+
+    private static String pageClass(String url) {
+        if (url.contains("SimpleSearch")) {
+            return "search";
+        } else if (url.contains("PatchDetails")) {
+            return "details";
+        } else if (url.contains("switch_to_simple")) {
+            return "platforms";
+        }
+        return "setup";
+    }
+
+    // returns the charset from the Content-Type header, ISO-8859-1 is the HTTP default
+    private static String pageCharset(String contentType) {
+        if (contentType != null) {
+            for (String p : contentType.split(";")) {
+                p = p.trim();
+                if (p.toLowerCase().startsWith("charset=")) {
+                    String charset = p.substring("charset=".length()).replace("\"", "").trim();
+                    try {
+                        if (Charset.isSupported(charset)) {
+                            return charset;
+                        }
+                    } catch (IllegalCharsetNameException e) {
+                        // fall through to the default
+                    }
+                }
+            }
+        }
+        return "ISO-8859-1";
+    }
+
+    // Validates that all values in the passed comma separated string exists in the
+    // Map<String, String>
+    private static boolean checkInputs(String inputs, Map<String, String> map) {
+        for (String p : inputs.split(",")) {
+            if (!map.containsKey(p))
+                return false;
+        }
+        return true;
+    }
+
+    // Validates that all values in the passed comma separated string exists in the
+    // Map<Integer, String>
+    private static boolean checkInputsTree(String inputs, Map<Integer, String> map) {
+        // special processing for "all", as it's processed later
+        if (inputs.equals("") || inputs.equals("none") || inputs.equals("all")) {
+            return true;
+        }
+        for (String p : inputs.split(",")) {
+            try {
+                if (!map.containsKey(Integer.parseInt(p)))
+                    return false;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Method to populate platforms
+    private static void platforms() throws IOException {
+        String getMOSPatchcfg = "";
+        String listPlatforms = "";
+        // this map is used to store platform/language codes and description from MOS.
+        Map<String, String> platforms = new HashMap<String, String>();
+
+        // Reading the .getMOSPatch.cfg file into getMOSPatchcfg variable if the file
+        // exists
+        try {
+            getMOSPatchcfg = readFile(".getMOSPatch.cfg");
+        } catch (IOException e) {
+        }
+
+        // Populate variables with available platforms
+        // Checking if we need to download platform list from MOS, yes if:
+        // * parameter "reset=yes" was passed, or
+        // * "platforms" parameter was provided (we need to validate the input), or
+        // * the .getMOSPatch.cfg was empty or didn't exist
+        if (checkParam("reset", "yes") || parameters.containsKey("platform") || "".equals(getMOSPatchcfg)) {
+            if (parameters.get("platform") == null) {
+                System.out.println("Platforms and languages need to be reset.");
+                System.out.println("Obtaining the list of platforms and languages:");
+
+                // Put the platform codes and descriptions of the search page into the "platforms" Map
+                platforms = extractPage(mosURL + "/Orion/SavedSearches/switch_to_simple", false, true).platforms;
+                for (Map.Entry<String, String> entry : platforms.entrySet()) {
+                    System.out.println(entry.getKey() + " - " + entry.getValue());
+                }
+                // Ask inputs if "platforms" parameter was not specified, and remove the
+                // parameter. SO a new value was asked if the inputs validation fails
+                System.out.println();
+                Console console = System.console();
+                if (parameters.get("platform") == null) {
+                    listPlatforms = console.readLine("Enter Comma separated platforms to list: ");
+                } else {
+                    listPlatforms = parameters.get("platform");
+                    System.out.println("Enter Comma separated platforms to list: " + listPlatforms);
+                    parameters.remove("platform");
+                }
+                // check the inputs as many times as necessary
+                while (!checkInputs(listPlatforms, platforms)) {
+                    System.out.println(" ERROR: Unparseable inputs. Try Again.");
+                    listPlatforms = console.readLine("Enter Comma separated platforms to list:");
+                }
+
+                // Write the configuration to the .getMOSPatch.cfg file
+                PrintWriter writer = new PrintWriter(".getMOSPatch.cfg", "UTF-8");
+                for (String r : listPlatforms.split(",")) {
+                    configuredPlatforms.put(r, platforms.get(r));
+                    writer.println(r + ";" + platforms.get(r));
+                }
+                writer.flush();
+                writer.close();
+            } else {
+                for (String r : parameters.get("platform").split(",")) {
+                    configuredPlatforms.put(r, "Platform " + r);
+                }
+            }
+            // if the config file existed, simply read the inputs from it.
+        } else {
+            for (String r : getMOSPatchcfg.split("\\r?\\n")) {
+                configuredPlatforms.put(r.split(";")[0], r.split(";")[1]);
+            }
+        }
+        // Output the configured platforms.
+        System.out.println("\nWe're going to download patches for the following Platforms/Languages:");
+        for (Map.Entry<String, String> entry : configuredPlatforms.entrySet()) {
+            System.out.println(" " + entry.getKey() + " - " + entry.getValue());
+        }
+    }
+
+    // Patterns to find the file download URLs and the details pages of multipart patches
+    private static final Pattern DOWNLOAD_URL = Pattern.compile("https?://.+?Download/process_form/[^\"]*.zip[^\"]*");
+    private static final Pattern MULTIPART_DETAILS = Pattern
+            .compile("javascript:showDetails.\"(/Orion/PatchDetails/process_form[^\"]*)\".*?Download Multi Part Patch");
+    // a file name, a SHA-256 digest, a "SHA-256" label, or any other mention of .zip (a digest belongs to the
+    // file name mentioned last, if it's at most DIGEST_DISTANCE characters before it, labelled as SHA-256 after
+    // the name and no other .zip is in between - any other 64 hex digits, i.e. in a URL, are ignored)
+    private static final Pattern FILE_DIGEST = Pattern.compile(
+            "(p\\d+_[\\w.\\-]+?\\.zip)|\\b([0-9A-Fa-f]{64})\\b|(SHA-?256)|\\.zip", Pattern.CASE_INSENSITIVE);
+    private static final int DIGEST_DISTANCE = 2000;
+    private static final Pattern PLATFORM_OPTION = Pattern.compile("\"([^\"]*)\"[^>]*>([^<\\r\\n]*)");
+
+    // Extracts the download URLs, the multipart details pages, the digests, the password protection flag and
+    // the platform/language options from a page in one pass, line by line as it arrives from the server. The
+    // cheap indexOf checks decide which of the precompiled patterns are applied to a line.
+    private static class PageExtractor {
+        final SearchResult result;
+        final boolean detailsPage;
+        final Map<String, String> platforms = new LinkedHashMap<String, String>();
+        private boolean inPlatforms;
+        private String lastFile;
+        private int sinceFile;
+        private boolean labelled;
+
+        PageExtractor(SearchResult result, boolean detailsPage) {
+            this.result = result;
+            this.detailsPage = detailsPage;
+        }
+
+        // reads the page as it's received, "in" counts the bytes for the rotating char
+        void read(CountingInputStream in, String charset, boolean silent) throws IOException {
+            int iterator = 0;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset), BUFFER_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line(line);
+                // just show a rotating char as a sign that something's ongoing, unless silent=yes
+                if (!silent && in.count / BUFFER_SIZE >= iterator) {
+                    System.out.print((iterator == 0 ? " " : "\b") + pchar[(iterator++ % 4)]);
+                }
+            }
+            if (!silent && iterator > 0) {
+                System.out.print("\b\b");
+            }
+        }
+
+        void line(String line) {
+            if (line.contains("process_form/")) {
+                Matcher m = DOWNLOAD_URL.matcher(line);
+                while (m.find()) {
+                    result.urls.add(m.group(0));
+                }
+            }
+            // Set the flag if password protected files were detected
+            if (line.contains("Download Password Protected Patch")) {
+                result.pwdProtected = true;
+            }
+            if (lastFile != null || line.contains(".zip")) {
+                Matcher m = FILE_DIGEST.matcher(line);
+                int end = 0;
+                while (m.find()) {
+                    sinceFile += m.start() - end;
+                    end = m.end();
+                    if (m.group(1) != null) {
+                        lastFile = m.group(1);
+                        sinceFile = 0;
+                        labelled = false;
+                    } else if (m.group(3) != null) {
+                        labelled = lastFile != null;
+                    } else if (m.group(2) != null && labelled && sinceFile <= DIGEST_DISTANCE) {
+                        result.digests.put(lastFile, m.group(2).toLowerCase());
+                        lastFile = null;
+                    } else if (m.group(2) == null) {
+                        lastFile = null;
+                    }
+                }
+                sinceFile += line.length() - end + 1;
+                if (sinceFile > DIGEST_DISTANCE) {
+                    lastFile = null;
+                }
             }
-
             // Processing Multipart patches, i.e. 12978712
             // Basically we find the URL for the "Patch Details" where URLs of individual
             // files are found.
-            // Procesing is the same as above.
-            regex = Pattern
-                    .compile("javascript:showDetails.\"/Orion/PatchDetails/process_form.+?Download Multi Part Patch");
-            regexMatcher = regex.matcher(dlPatchHTML);
-            while (regexMatcher.find()) {
-                for (String oneline : regexMatcher.group(0).split("\\r?\\n")) {
-                    // Download the patch detail page
-                    dlPatchHTML2 = downloadString("https://updates.oracle.com" + oneline.split("\"")[1]);
-
-                    // Look for file download URL pattern in the retrieved HTML and collect it in
-                    // the PatchFileList
-                    regex2 = Pattern.compile("https://.+?Download/process_form/[^\"]*.zip[^\"]*");
-                    regexMatcher2 = regex2.matcher(dlPatchHTML2);
-                    while (regexMatcher2.find()) {
-                        for (String oneline2 : regexMatcher2.group(0).split("\\r?\\n")) {
-                            if (oneline2.split("process_form/")[1].split(".zip")[0].matches(regx)) {
-                                patchFileList.put(++patchFileListCounter, oneline2);
-                            }
-                        }
-                    }
-                    // Again check if anything's password protected
-                    if (dlPatchHTML2.contains("Download Password Protected Patch")) {
-                        pwdProtected = true;
+            if (!detailsPage && line.contains("showDetails")) {
+                Matcher m = MULTIPART_DETAILS.matcher(line);
+                while (m.find()) {
+                    result.details.add(mosURL + m.group(1));
+                }
+            }
+            // the options of <select name=plat_lang>, except the "selected" placeholder
+            if (line.contains("<select name=plat_lang")) {
+                inPlatforms = true;
+            }
+            if (inPlatforms) {
+                if (line.contains("option") && !line.contains("selected")) {
+                    Matcher m = PLATFORM_OPTION.matcher(line);
+                    if (m.find()) {
+                        platforms.put(m.group(1), m.group(2));
                     }
                 }
+                if (line.contains("</select>")) {
+                    inPlatforms = false;
+                }
+            }
+        }
+    }
+
+    // Requests the page and runs it through the PageExtractor as it's received, the page isn't kept.
+    // interactive=false hides the rotating char, as other pages may be downloaded at the same time.
+    private static PageExtractor extractPage(final String url, final boolean detailsPage, final boolean interactive)
+            throws IOException {
+        return retry.call(url, url, new Callable<PageExtractor>() {
+            public PageExtractor call() throws IOException {
+                return extractPageOnce(url, detailsPage, interactive);
+            }
+        });
+    }
+
+    private static PageExtractor extractPageOnce(String url, boolean detailsPage, boolean interactive) throws IOException {
+        PageExtractor page = new PageExtractor(new SearchResult(), detailsPage);
+        PageResponse response = openPage(url, pageClass(url));
+        Exchange ex = response.exchange;
+        CountingInputStream in = new CountingInputStream(response.body());
+        try {
+            page.read(in, pageCharset(response.contentType), checkParam("silent", "yes") || !interactive);
+        } finally {
+            in.close();
+            ex.finish(in.count);
+        }
+        return page;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    // What was found searching one patch for one platform/language. All files are kept here, the regexp
+    // is applied when they are listed.
+    private static class SearchResult {
+        String patch;
+        Map.Entry<String, String> platform;
+        List<String> urls = new ArrayList<String>();
+        List<String> details = new ArrayList<String>();
+        Map<String, String> digests = new HashMap<String, String>();
+        boolean pwdProtected;
+        long time = System.currentTimeMillis();
+    }
+
+    // cachettl=<minutes>: search results are kept in .getMOSPatch.cache, one line for each patch and
+    // platform/language: mosurl, patch, plat_lang, time, password protection flag, the download URLs and the
+    // digests (as sha256:<file name>=<digest>) separated by tabs. The results of another mosurl (i.e. a mirror
+    // or a test server) are never used. Lines written before the mosurl was added fail the time check.
+    private static final String CACHE_FILE = ".getMOSPatch.cache";
+    private static final Object cacheLock = new Object();
+
+    private static Map<String, SearchResult> readCache() {
+        Map<String, SearchResult> cache = new HashMap<String, SearchResult>();
+        String cached = "";
+        try {
+            cached = readFile(CACHE_FILE);
+        } catch (IOException e) {
+        }
+        for (String line : cached.split("\\r?\\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length < 5) {
+                continue;
+            }
+            SearchResult result = new SearchResult();
+            result.patch = fields[1];
+            try {
+                result.time = Long.parseLong(fields[3]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            result.pwdProtected = "yes".equals(fields[4]);
+            for (int i = 5; i < fields.length; i++) {
+                if (fields[i].startsWith("sha256:") && fields[i].contains("=")) {
+                    result.digests.put(fields[i].substring(7, fields[i].indexOf('=')),
+                            fields[i].substring(fields[i].indexOf('=') + 1));
+                } else {
+                    result.urls.add(fields[i]);
+                }
+            }
+            cache.put(fields[0] + "\t" + fields[1] + "\t" + fields[2], result);
+        }
+        return cache;
+    }
+
+    private static String cacheKey(String patch, String platform) {
+        return mosURL + "\t" + patch + "\t" + platform;
+    }
+
+    private static void writeCache(Map<String, SearchResult> cache, long ttl) throws IOException {
+        // written to a temporary file first, as other getMOSPatch processes may be reading the cache
+        File tmp = File.createTempFile(CACHE_FILE, ".tmp", new File("."));
+        PrintWriter writer = new PrintWriter(tmp, "UTF-8");
+        for (Map.Entry<String, SearchResult> entry : cache.entrySet()) {
+            SearchResult result = entry.getValue();
+            if (result.time + ttl < System.currentTimeMillis()) {
+                continue;
+            }
+            writer.print(entry.getKey() + "\t" + result.time + "\t" + (result.pwdProtected ? "yes" : "no"));
+            for (String url : result.urls) {
+                writer.print("\t" + url);
+            }
+            for (Map.Entry<String, String> digest : result.digests.entrySet()) {
+                writer.print("\tsha256:" + digest.getKey() + "=" + digest.getValue());
+            }
+            writer.println();
+        }
+        writer.close();
+        File cacheFile = new File(CACHE_FILE);
+        if ((cacheFile.exists() && !cacheFile.delete()) || !tmp.renameTo(cacheFile)) {
+            tmp.delete();
+            System.out.println("warning: can't update " + CACHE_FILE);
+        }
+    }
+
+    // returns the file name from the download URL
+    private static String zipName(String url) {
+        return url.split("process_form/")[1].split(".zip")[0] + ".zip";
+    }
+
+    // adds what was found on one more page of the patch
+    private static void merge(SearchResult result, SearchResult page) {
+        result.urls.addAll(page.urls);
+        result.details.addAll(page.details);
+        result.digests.putAll(page.digests);
+        result.pwdProtected = result.pwdProtected || page.pwdProtected;
+    }
+
+    // Runs all patch and platform/language searches, and then all multipart details pages, using
+    // "searchthreads" parallel requests. Nothing is asked here, the results are returned in the same
+    // order the searches would run one by one.
+    // Results cached not longer than cachettl minutes ago are used without searching again, unless refresh=yes.
+    private static List<SearchResult> searchPatches(List<String> patches) throws IOException {
+        int threads = Math.max(1, intParam("searchthreads", 1));
+        if (threads == 1) {
+            return searchPatches(patches, configuredPlatforms, null, true);
+        }
+        System.out.println("\nSearching " + patches.size() * configuredPlatforms.size()
+                + " patch and platform/language combinations using " + threads + " parallel requests");
+        ExecutorService pool = engine.newPool(threads);
+        try {
+            return searchPatches(patches, configuredPlatforms, pool, false);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // the pages are downloaded by the pool, or by the calling thread if the pool is null
+    private static List<SearchResult> searchPatches(List<String> patches, Map<String, String> platforms,
+            ExecutorService pool, boolean interactive) throws IOException {
+        long ttl = intParam("cachettl", 0) * 60000L;
+        Map<String, SearchResult> cache = ttl > 0 ? readCache() : new HashMap<String, SearchResult>();
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        Map<SearchResult, Future<SearchResult>> pages = new HashMap<SearchResult, Future<SearchResult>>();
+        for (String patch : patches) {
+            for (Map.Entry<String, String> platform : platforms.entrySet()) {
+                SearchResult result = cache.get(cacheKey(patch, platform.getKey()));
+                if (result == null || result.time + ttl < System.currentTimeMillis() || checkParam("refresh", "yes")) {
+                    result = new SearchResult();
+                    // Submit the patch+platform combination using the SimpleSearch form in MOS
+                    pages.put(result, fetchPage(mosURL + "/Orion/SimpleSearch/process_form?search_type=patch&patch_number="
+                            + patch + "&plat_lang=" + platform.getKey(), false, interactive, pool));
+                }
+                result.patch = patch;
+                result.platform = platform;
+                results.add(result);
+            }
+        }
+        for (SearchResult result : results) {
+            if (pages.containsKey(result)) {
+                merge(result, waitFor(pages.get(result)));
+            }
+        }
+
+        // the details pages of multipart patches are downloaded in the second round
+        Map<SearchResult, List<Future<SearchResult>>> detailPages = new HashMap<SearchResult, List<Future<SearchResult>>>();
+        for (SearchResult result : results) {
+            List<Future<SearchResult>> l = new ArrayList<Future<SearchResult>>();
+            for (String details : result.details) {
+                l.add(fetchPage(details, true, interactive, pool));
+            }
+            detailPages.put(result, l);
+        }
+        for (SearchResult result : results) {
+            for (Future<SearchResult> page : detailPages.get(result)) {
+                merge(result, waitFor(page));
+            }
+        }
+
+        if (ttl > 0 && !pages.isEmpty()) {
+            // the cache is read again, other searches may have updated it in the meantime
+            synchronized (cacheLock) {
+                cache = readCache();
+                for (SearchResult result : pages.keySet()) {
+                    result.details.clear();
+                    cache.put(cacheKey(result.patch, result.platform.getKey()), result);
+                }
+                writeCache(cache, ttl);
+            }
+        }
+        return results;
+    }
+
+    // each page is extracted into a SearchResult of its own, the caller merges them in order
+    private static Future<SearchResult> fetchPage(final String url, final boolean detailsPage, final boolean interactive,
+            ExecutorService pool) {
+        Callable<SearchResult> fetch = new Callable<SearchResult>() {
+            public SearchResult call() throws IOException {
+                return extractPage(url, detailsPage, interactive).result;
+            }
+        };
+        if (pool != null) {
+            return pool.submit(fetch);
+        }
+        FutureTask<SearchResult> page = new FutureTask<SearchResult>(fetch);
+        page.run();
+        return page;
+    }
+
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    // this method prepares the list of file download URLs
+    private static void buildDLFileList(List<String> patches, String regx) throws IOException {
+        for (SearchResult result : searchPatches(patches)) {
+            selectFiles(result, regx);
+        }
+    }
+
+    // lists the files found for the patch and platform/language, and adds the chosen ones to DownloadFiles
+    private static void selectFiles(SearchResult result, String regx) {
+        String patchSelector = "";
+        // Temporary variables are reset
+        int patchFileListCounter = 0;
+        patchFileList.clear();
+        System.out.println("\nProcessing patch " + result.patch + " for " + result.platform.getValue()
+                + " and applying regexp " + regx + " to the filenames:");
+
+        for (String url : result.urls) {
+            if (url.split("process_form/")[1].split(".zip")[0].matches(regx)) {
+                patchFileList.put(++patchFileListCounter, url);
             }
-            // Display a warning if there are password protected files
-            if (pwdProtected) {
-                System.out.println(
-                        " ! This patch contains password protected files (not listed). Use My Oracle Support to download them!");
-                // Display a message if no files were found
-            } else if (patchFileList.isEmpty()) {
-                System.out.println(" No files available");
+            expectDigest(url, result.digests);
+        }
+        // Display a warning if there are password protected files
+        if (result.pwdProtected) {
+            System.out.println(
+                    " ! This patch contains password protected files (not listed). Use My Oracle Support to download them!");
+            // Display a message if no files were found
+        } else if (patchFileList.isEmpty()) {
+            System.out.println(" No files available");
+        }
+        // Produce the list of found files if anything was found
+        for (Map.Entry<Integer, String> dlurl : patchFileList.entrySet()) {
+            System.out.println(" " + dlurl.getKey() + " - " + zipName(dlurl.getValue()));
+        }
+        // if parameter "download=all" was specified, don't ask for inputs, but download
+        // all files. This is especially useful in combination with "regexp" parameter
+        if (checkParam("download", "all") && !patchFileList.isEmpty()) {
+            // download all files here
+            System.out.println(" Enter Comma separated files to download: all");
+            System.out.println(" All files will be downloaded because download=all was specified.");
+            patchSelector = "all";
+        } else if (patchFileList.isEmpty()) {
+            // Nothing needs to be done
+            // Ask for inputs and validate them
+        } else {
+            Console console = System.console();
+            patchSelector = console
+                    .readLine(" Enter Comma separated files to download (\"all\" or \"none\" can be used too): ");
+            while (!checkInputsTree(patchSelector, patchFileList)) {
+                System.out.println("  ERROR: Unparsable inputs. Try Again.");
+                patchSelector = console.readLine(
+                        " Enter Comma separated files to download (\"all\" or \"none\" can be used too): ");
             }
-            // Produce the list of found files if anything was found
+        }
+        // if "all" patches need to be downloaded - put them all in the DownloadFiles
+        // Map
+        if (patchSelector.equals("all")) {
             for (Map.Entry<Integer, String> dlurl : patchFileList.entrySet()) {
-                System.out.println(" " + dlurl.getKey() + " - "
-                        + dlurl.getValue().split("process_form/")[1].split(".zip")[0] + ".zip");
-            }
-            patchSelector = "";
-            // if parameter "download=all" was specified, don't ask for inputs, but download
-            // all files. This is especially useful in combination with "regexp" parameter
-            if (checkParam("download", "all") && !patchFileList.isEmpty()) {
-                // download all files here
-                System.out.println(" Enter Comma separated files to download: all");
-                System.out.println(" All files will be downloaded because download=all was specified.");
-                patchSelector = "all";
-            } else if (patchFileList.isEmpty()) {
-                // Nothing needs to be done
-                // Ask for inputs and validate them
-            } else {
-                Console console = System.console();
-                patchSelector = console
-                        .readLine(" Enter Comma separated files to download (\"all\" or \"none\" can be used too): ");
-                while (!checkInputsTree(patchSelector, patchFileList)) {
-                    System.out.println("  ERROR: Unparsable inputs. Try Again.");
-                    patchSelector = console.readLine(
-                            " Enter Comma separated files to download (\"all\" or \"none\" can be used too): ");
+                if (!downloadFiles.contains(dlurl.getValue())) {
+                    downloadFiles.add(dlurl.getValue());
+                }
+            }
+        } else if (patchSelector.equals("") || patchSelector.equals("none")) {
+            // Nothing needs to be done
+        } else {
+            for (String p : patchSelector.split(",")) {
+                if (!downloadFiles.contains(patchFileList.get(Integer.parseInt(p))))
+                    downloadFiles.add(patchFileList.get(Integer.parseInt(p)));
+            }
+        }
+    }
+
+    // Before the downloads start, the final URL and the size of every selected file are probed (PLAN_THREADS
+    // at a time). The files are downloaded largest-first, so with threads=N a big file queued last doesn't keep
+    // one connection busy long after the others are done, and the run stops before the first byte is written if
+    // the staging directory can't hold what's left to download. The probes are handed over to transferFile.
+    private static final int PLAN_THREADS = 8;
+    private static final long PROBE_TTL = 10 * 60 * 1000L;
+    private static final Map<String, RemoteFile> probedFiles = new ConcurrentHashMap<String, RemoteFile>();
+    // the download rate of the last run (bytes/s) is kept in this file of the staging directory
+    private static final String RATE_FILE = ".getMOSPatch.rate";
+
+    private static class DownloadPlan {
+        final File dir;
+        final List<String> urls = new ArrayList<String>();
+        final Map<String, Long> lengths = new HashMap<String, Long>();
+        long bytes;     // still to be downloaded
+
+        DownloadPlan(String targetDir, Collection<String> files) throws IOException {
+            dir = new File("".equals(targetDir) ? "." : targetDir);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir.getPath());
+            }
+            // the same file can be listed under several URLs (i.e. a generic file found for two platforms/languages), it's
+            // only downloaded once, otherwise two downloads would write the same file
+            Map<String, String> unique = new LinkedHashMap<String, String>();
+            for (String url : files) {
+                if (unique.containsKey(zipName(url))) {
+                    progress.println(" " + zipName(url) + " is listed more than once, it's downloaded once");
+                } else {
+                    unique.put(zipName(url), url);
+                }
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(PLAN_THREADS, unique.size()));
+            Map<String, Future<RemoteFile>> probes = new LinkedHashMap<String, Future<RemoteFile>>();
+            try {
+                for (final String url : unique.values()) {
+                    probes.put(url, pool.submit(new Callable<RemoteFile>() {
+                        public RemoteFile call() throws IOException {
+                            return probe(url);
+                        }
+                    }));
+                }
+                for (Map.Entry<String, Future<RemoteFile>> p : probes.entrySet()) {
+                    long length = -1;
+                    try {
+                        RemoteFile rf = waitFor(p.getValue());
+                        probedFiles.put(p.getKey(), rf);
+                        length = rf.length;
+                    } catch (IOException e) {
+                        // transferFile probes it again, with retries
+                        progress.println("WARNING: can't find out the size of " + zipName(p.getKey()) + " (" + e.getMessage() + ")");
+                    }
+                    urls.add(p.getKey());
+                    lengths.put(p.getKey(), length);
+                    bytes += remaining(new File(targetDir + zipName(p.getKey())), p.getKey(), probedFiles.get(p.getKey()));
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            // the files of unknown size could be the largest ones, they go first
+            Collections.sort(urls, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    long la = lengths.get(a) < 0 ? Long.MAX_VALUE : lengths.get(a);
+                    long lb = lengths.get(b) < 0 ? Long.MAX_VALUE : lengths.get(b);
+                    return la > lb ? -1 : la < lb ? 1 : 0;
                 }
+            });
+        }
+
+        // the bytes that still have to be written, as transferFile will do it: sync=yes skips the files that are
+        // already complete, the files in the store are linked, and the .part file of an earlier run is continued
+        // if its .part.info matches. It holds the bytes received so far, or for a segmented download the
+        // segments that aren't "done" are still needed (the file is as long as the furthest byte written).
+        private static long remaining(File target, String url, RemoteFile rf) throws IOException {
+            long length = rf == null ? -1 : rf.length;
+            File part = new File(target.getPath() + ".part");
+            if (length < 0 || (checkParam("sync", "yes") && target.length() == length)) {
+                return 0;
+            }
+            if (store != null && store.find(target.getName(), length, length + ";" + rf.etag + ";" + rf.lastModified,
+                    expectedDigests.get(url)) != null) {
+                return 0;
             }
-            // if "all" patches need to be downloaded - put them all in the DownloadFiles
-            // Map
-            if (patchSelector.equals("all")) {
-                for (Map.Entry<Integer, String> dlurl : patchFileList.entrySet()) {
-                    if (!downloadFiles.contains(dlurl.getValue())) {
-                        downloadFiles.add(dlurl.getValue());
+            int segments = segments(rf);
+            Properties previous = previousPartState(part, new File(part.getPath() + ".info"),
+                    partState(url, rf, segments), rf);
+            if (previous == null) {
+                return length;
+            }
+            if (segments > 1) {
+                long needed = 0;
+                long segmentSize = (length + segments - 1) / segments;
+                for (int i = 0; i < segments; i++) {
+                    if (!"done".equals(previous.getProperty("segment." + i))) {
+                        needed += Math.min(length, (i + 1) * segmentSize) - i * segmentSize;
                     }
                 }
-            } else if (patchSelector.equals("") || patchSelector.equals("none")) {
-                // Nothing needs to be done
-            } else {
-                for (String p : patchSelector.split(",")) {
-                    if (!downloadFiles.contains(patchFileList.get(Integer.parseInt(p))))
-                        downloadFiles.add(patchFileList.get(Integer.parseInt(p)));
+                return needed;
+            }
+            return part.length() <= length ? length - part.length() : length;
+        }
+
+        // the rate limit or the rate measured by the last run, whichever is lower (0 if neither is known)
+        long expectedRate() throws IOException {
+            long rate = 0;
+            File last = new File(dir, RATE_FILE);
+            if (last.isFile()) {
+                try {
+                    rate = Long.parseLong(readFile(last.getPath()).trim());
+                } catch (NumberFormatException e) {
+                    // written by a different version, ignored
+                }
+            }
+            long limit = intParam("maxrate", 0) * 1024L;
+            return limit > 0 && (rate == 0 || limit < rate) ? limit : rate;
+        }
+
+        void print(int threads) throws IOException {
+            System.out.println("Download plan (largest first" + (threads > 1 ? ", " + threads + " at a time" : "") + "):");
+            for (String url : urls) {
+                long length = lengths.get(url);
+                System.out.println(String.format(" %8s %s", length < 0 ? "?" : length / 1024 / 1024 + "MB", zipName(url)));
+            }
+            long free = dir.getUsableSpace();
+            long rate = expectedRate();
+            StringBuilder sb = new StringBuilder(" Total: ").append(bytes / 1024 / 1024).append("MB to download");
+            sb.append(", ").append(free / 1024 / 1024).append("MB free in ").append(dir.getPath());
+            if (rate > 0 && bytes > 0) {
+                long eta = bytes / rate;
+                sb.append(", about ").append(eta / 3600 > 0 ? eta / 3600 + "h" : "")
+                        .append(String.format(eta / 3600 > 0 ? "%02dm" : "%dm", eta / 60 % 60))
+                        .append(String.format("%02ds", eta % 60)).append(" at ").append(rate / 1024).append("KB/s");
+            }
+            System.out.println(sb);
+            if (bytes > free) {
+                throw new IOException("there's not enough space in " + dir.getPath() + ": " + bytes / 1024 / 1024
+                        + "MB are needed, " + free / 1024 / 1024 + "MB are free");
+            }
+        }
+
+        // the rate of a run that downloaded enough to be a good estimate is kept for the next one
+        void saveRate(long millis) throws IOException {
+            if (bytes >= 16 * 1024 * 1024 && millis >= 1000) {
+                PrintWriter writer = new PrintWriter(new File(dir, RATE_FILE), "UTF-8");
+                try {
+                    writer.println(bytes * 1000 / millis);
+                } finally {
+                    writer.close();
                 }
             }
         }
     }
 
-    // Method to download all files from URLs in DownloadFiles Map
-    private static void downloadAllFiles() throws IOException {
-        finalDownload = true;
+    // Method to download all files from URLs in DownloadFiles Map, returns the number of files that failed
+    private static int downloadAllFiles() throws IOException {
         String targetDir = "";
         String stageDir = parameters.containsKey("stagedir") ? parameters.get("stagedir") : "";
         if (!"".equals(stageDir)) {
             targetDir = stageDir + File.separator;
         }
         System.out.println();
-        if (!downloadFiles.isEmpty()) {
+        if (downloadFiles.isEmpty()) {
+            System.out.println("There's nothing to download!");
+            return 0;
+        }
+        DownloadPlan plan = new DownloadPlan(targetDir, downloadFiles);
+        int threads = Math.max(1, Math.min(intParam("threads", 1), plan.urls.size()));
+        plan.print(threads);
+        long t1 = System.currentTimeMillis();
+        int failed = 0;
+        if (threads > 1) {
+            failed = downloadAllFilesParallel(targetDir, plan.urls, threads);
+        } else {
             System.out.println("Downloading all selected files:");
-            // iterate through the URLs in the TreeMap
-            for (String d : downloadFiles) {
-                System.out.print(" ");
-                downloadFile(d, targetDir + d.split("process_form/")[1].split(".zip")[0] + ".zip");
+            // iterate through the URLs in the plan, a failed file doesn't stop the others
+            for (String d : plan.urls) {
+                try {
+                    transferFile(d, targetDir + zipName(d), true);
+                } catch (IOException e) {
+                    failed++;
+                    System.out.println(" FAILED: " + zipName(d) + " (" + e.getMessage() + ")");
+                }
             }
-        } else {
-            System.out.println("There's nothing to download!");
+            if (failed > 0) {
+                System.out.println("\nDownloaded " + (plan.urls.size() - failed) + " of " + plan.urls.size() + " files.");
+            }
+        }
+        if (failed == 0) {
+            plan.saveRate(System.currentTimeMillis() - t1);
+        }
+        return failed;
+    }
+
+    // threads=N: the files are downloaded by a pool of N workers sharing the same cookie session, in the order
+    // of the list. A failed file doesn't stop the other downloads, they are all reported at the end and their
+    // number is returned, so the run exits with 1 as with a single thread.
+    private static int downloadAllFilesParallel(final String targetDir, List<String> urls, int threads) {
+        System.out.println("Downloading all selected files using " + threads + " parallel downloads:");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Map<String, Future<Object>> results = new TreeMap<String, Future<Object>>();
+        for (final String d : urls) {
+            final String filename = zipName(d);
+            results.put(filename, pool.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    transferFile(d, targetDir + filename, false);
+                    return null;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        List<String> failed = new ArrayList<String>();
+        for (Map.Entry<String, Future<Object>> r : results.entrySet()) {
+            try {
+                r.getValue().get();
+            } catch (ExecutionException e) {
+                failed.add(r.getKey() + " (" + e.getCause().getMessage() + ")");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.add(r.getKey() + " (interrupted)");
+            }
+        }
+        System.out.println("\nDownloaded " + (results.size() - failed.size()) + " of " + results.size() + " files.");
+        for (String f : failed) {
+            System.out.println(" FAILED: " + f);
+        }
+        return failed.size();
+    }
+
+    // manifest=<file>: every line of the file is a job "patch;plat_lang[,plat_lang]*;regexp;subdirectory",
+    // only the patch is required ('#' starts a comment). The empty fields default to the configured
+    // platforms/languages, the regexp parameter and the staging directory. Nothing is asked, all files found
+    // are downloaded. Jobs are read, searched and downloaded as a pipeline: at most 2 x searchthreads jobs
+    // and 2 x threads files are in flight at any time, regardless of the number of lines in the file.
+    private static class BatchRun {
+        final int searchThreads = Math.max(1, intParam("searchthreads", 1));
+        final int threads = Math.max(1, intParam("threads", 1));
+        final ExecutorService searchPool = engine.newPool(searchThreads);
+        final ExecutorService downloadPool = Executors.newFixedThreadPool(threads);
+        final Semaphore pendingJobs = new Semaphore(2 * searchThreads);
+        final Semaphore pendingFiles = new Semaphore(2 * threads);
+        // the files that are being downloaded, so two jobs don't write the same file at the same time
+        final Set<String> inFlight = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger jobs = new AtomicInteger();
+        final AtomicInteger failedJobs = new AtomicInteger();
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicInteger failedFiles = new AtomicInteger();
+
+        // returns the number of jobs and files that failed
+        int run(String manifestFile) throws IOException {
+            System.out.println("\nProcessing the jobs in " + manifestFile + " using " + searchThreads
+                    + " parallel searches and " + threads + " parallel downloads:");
+            BufferedReader reader = new BufferedReader(new FileReader(manifestFile));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    final String job = "line " + lineNumber;
+                    final String[] fields = (line + ";;;").split(";", -1);
+                    pendingJobs.acquire();
+                    jobs.incrementAndGet();
+                    searchPool.submit(new Runnable() {
+                        public void run() {
+                            try {
+                                runJob(job, fields[0].trim(), fields[1].trim(), fields[2].trim(), fields[3].trim());
+                            } catch (Exception e) {
+                                failedJobs.incrementAndGet();
+                                progress.println(" FAILED: " + job + " (" + e + ")");
+                            } finally {
+                                pendingJobs.release();
+                            }
+                        }
+                    });
+                }
+                searchPool.shutdown();
+                searchPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                downloadPool.shutdown();
+                downloadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            } finally {
+                reader.close();
+                searchPool.shutdownNow();
+                downloadPool.shutdownNow();
+            }
+            System.out.println("\nProcessed " + jobs.get() + " jobs (" + failedJobs.get() + " failed), downloaded "
+                    + files.get() + " files (" + failedFiles.get() + " failed).");
+            return failedJobs.get() + failedFiles.get();
+        }
+
+        void runJob(String job, String patch, String platformList, String regx, String subdir)
+                throws IOException, InterruptedException {
+            Map<String, String> platforms = new LinkedHashMap<String, String>();
+            if ("".equals(platformList)) {
+                platforms.putAll(configuredPlatforms);
+            } else {
+                for (String r : platformList.split(",")) {
+                    platforms.put(r, configuredPlatforms.containsKey(r) ? configuredPlatforms.get(r) : "Platform " + r);
+                }
+            }
+            if ("".equals(patch) || platforms.isEmpty()) {
+                throw new IOException("the patch or the platforms/languages are not specified");
+            }
+            if ("".equals(regx)) {
+                regx = parameters.get("regexp");
+            }
+            File dir = new File(parameters.containsKey("stagedir") ? parameters.get("stagedir") : ".", subdir);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir.getPath());
+            }
+
+            for (SearchResult result : searchPatches(Collections.singletonList(patch), platforms, null, false)) {
+                Set<String> urls = new LinkedHashSet<String>();
+                for (String url : result.urls) {
+                    if (url.split("process_form/")[1].split(".zip")[0].matches(regx)) {
+                        urls.add(url);
+                    }
+                }
+                progress.println(" " + job + ": patch " + patch + " for " + result.platform.getValue() + " - "
+                        + urls.size() + " files" + (result.pwdProtected ? " (password protected files not listed)" : ""));
+                for (String url : urls) {
+                    expectDigest(url, result.digests);
+                    download(url, new File(dir, zipName(url)).getPath());
+                }
+            }
+        }
+
+        // waits if too many files are already queued
+        void download(final String url, final String filename) throws InterruptedException {
+            if (!inFlight.add(filename)) {
+                progress.println(" " + filename + " is already being downloaded");
+                return;
+            }
+            pendingFiles.acquire();
+            downloadPool.submit(new Runnable() {
+                public void run() {
+                    try {
+                        transferFile(url, filename, false);
+                        files.incrementAndGet();
+                    } catch (Exception e) {
+                        failedFiles.incrementAndGet();
+                        progress.println(" FAILED: " + filename + " (" + e + ")");
+                    } finally {
+                        expectedDigests.remove(url);
+                        inFlight.remove(filename);
+                        pendingFiles.release();
+                    }
+                }
+            });
+        }
+    }
+
+    // watch=<file>: getMOSPatch keeps running and polls MOS for new files of the subscriptions in the file, one per
+    // line in the format of the manifest (patch;plat_lang[,plat_lang]*;regexp;subdirectory). The file is read again
+    // before every poll, so subscriptions can be added without a restart. The polls are watchinterval=<minutes>
+    // (60) apart, +-20% at random, so several watchers don't hit MOS at the same moment. MOS doesn't send ETag or
+    // Last-Modified for the search pages, so every search is requested, but only a SHA-256 of the file list
+    // (names and published digests) is compared with the previous poll, stored in .getMOSPatch.watch: nothing is
+    // probed or downloaded while the list is the same. When it changes, the files that aren't in the manifest of
+    // the subscription's directory are downloaded, and the watchhook=<command> is run for each of them with the
+    // file as its last argument (and in GETMOSPATCH_FILE, GETMOSPATCH_PATCH, GETMOSPATCH_PLATFORM).
+    // Every delivered file is recorded in .getMOSPatch.watch as well (file.<path>=<time>), as soon as it arrives:
+    // with extract=yes keepzip=no the zip is gone and has no manifest entry, and the hook must not run twice.
+    // The list is only recorded when all new files were downloaded, so the failed ones are tried again next time.
+    private static final String WATCH_FILE = ".getMOSPatch.watch";
+
+    private static class Watch {
+        final String subscriptions;
+        final SessionCookieStore session;
+        final Map<String, Long> phases;
+        final long interval = Math.max(1, intParam("watchinterval", 60)) * 60000L;
+        final int polls = intParam("watchpolls", 0);
+        final Random random = new Random();
+
+        Watch(String subscriptions, SessionCookieStore session, Map<String, Long> phases) {
+            this.subscriptions = subscriptions;
+            this.session = session;
+            this.phases = phases;
+        }
+
+        void run() throws IOException {
+            // the search results must be new, cached ones would hide the changes
+            parameters.put("refresh", "yes");
+            log("Watching the subscriptions in " + subscriptions + " every " + interval / 60000 + " minutes");
+            for (int poll = 1; polls <= 0 || poll <= polls; poll++) {
+                try {
+                    poll();
+                } catch (IOException e) {
+                    // MOS may be down for maintenance, the next poll tries again
+                    log("ERROR: " + e.getMessage());
+                }
+                if (instrument) {
+                    writeReport(phases);
+                }
+                if (polls > 0 && poll >= polls) {
+                    break;
+                }
+                long wait = (long) (interval * (0.8 + 0.4 * random.nextDouble()));
+                log("Next poll in " + wait / 60000 + "m" + String.format("%02d", wait / 1000 % 60) + "s");
+                Retry.sleep(wait);
+            }
+        }
+
+        void poll() throws IOException {
+            renewSession(session);
+            Properties state = Store.load(new File(WATCH_FILE));
+            int changed = 0;
+            int arrived = 0;
+            BufferedReader reader = new BufferedReader(new FileReader(subscriptions));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = (line + ";;;").split(";", -1);
+                    String patch = fields[0].trim();
+                    String regx = "".equals(fields[2].trim()) ? parameters.get("regexp") : fields[2].trim();
+                    File dir = new File(parameters.containsKey("stagedir") ? parameters.get("stagedir") : ".", fields[3].trim());
+                    Map<String, String> platforms = new LinkedHashMap<String, String>();
+                    if ("".equals(fields[1].trim())) {
+                        platforms.putAll(configuredPlatforms);
+                    } else {
+                        for (String r : fields[1].trim().split(",")) {
+                            platforms.put(r, configuredPlatforms.containsKey(r) ? configuredPlatforms.get(r) : "Platform " + r);
+                        }
+                    }
+                    if ("".equals(patch) || platforms.isEmpty()) {
+                        log("WARNING: the patch or the platforms/languages are not specified in \"" + line + "\"");
+                        continue;
+                    }
+                    for (SearchResult result : searchPatches(Collections.singletonList(patch), platforms, null, false)) {
+                        String key = patch + ";" + result.platform.getKey() + ";" + regx + ";" + dir.getPath();
+                        List<String> urls = new ArrayList<String>();
+                        for (String url : result.urls) {
+                            if (url.split("process_form/")[1].split(".zip")[0].matches(regx)) {
+                                urls.add(url);
+                            }
+                        }
+                        String hash = hash(urls, result.digests);
+                        if (hash.equals(state.getProperty(key))) {
+                            continue;
+                        }
+                        changed++;
+                        int failed = 0;
+                        for (String url : urls) {
+                            File target = new File(dir, zipName(url));
+                            if (state.containsKey("file." + target.getPath()) || target.exists() && readManifest(target) != null) {
+                                continue;
+                            }
+                            if (!dir.isDirectory() && !dir.mkdirs()) {
+                                throw new IOException("can't create " + dir.getPath());
+                            }
+                            log("New file " + target.getName() + " of patch " + patch + " for " + result.platform.getValue());
+                            expectDigest(url, result.digests);
+                            try {
+                                transferFile(url, target.getPath(), false);
+                                arrived++;
+                                state.setProperty("file." + target.getPath(), new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+                                Store.save(new File(WATCH_FILE), state);
+                                hook(target, patch, result.platform.getKey());
+                            } catch (IOException e) {
+                                failed++;
+                                log("FAILED: " + target.getName() + " (" + e.getMessage() + ")");
+                            } finally {
+                                expectedDigests.remove(url);
+                            }
+                        }
+                        if (failed == 0) {
+                            state.setProperty(key, hash);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+                Store.save(new File(WATCH_FILE), state);
+            }
+            log("Poll complete: " + changed + " file lists changed, " + arrived + " new files downloaded");
+        }
+
+        // the file names and the digests published on MOS, in a stable order
+        static String hash(List<String> urls, Map<String, String> digests) {
+            MessageDigest md = newDigest();
+            TreeMap<String, String> files = new TreeMap<String, String>();
+            for (String url : urls) {
+                files.put(zipName(url), String.valueOf(digests.get(zipName(url))));
+            }
+            try {
+                md.update(files.toString().getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            return toHex(md.digest());
+        }
+
+        // watchhook=<command>: a failing hook is reported, the file stays downloaded
+        void hook(File target, String patch, String platform) {
+            if (!parameters.containsKey("watchhook")) {
+                return;
+            }
+            List<String> command = new ArrayList<String>(Arrays.asList(parameters.get("watchhook").trim().split("\\s+")));
+            command.add(target.getAbsolutePath());
+            ProcessBuilder pb = new ProcessBuilder(command).redirectErrorStream(true);
+            pb.environment().put("GETMOSPATCH_FILE", target.getAbsolutePath());
+            pb.environment().put("GETMOSPATCH_PATCH", patch);
+            pb.environment().put("GETMOSPATCH_PLATFORM", platform);
+            try {
+                Process process = pb.start();
+                for (String line : readAll(process.getInputStream()).split("\\r?\\n")) {
+                    if (line.length() > 0) {
+                        log(" hook: " + line);
+                    }
+                }
+                int exit = process.waitFor();
+                if (exit != 0) {
+                    log("WARNING: " + parameters.get("watchhook") + " failed for " + target.getName() + " (exit code " + exit + ")");
+                }
+            } catch (IOException e) {
+                log("WARNING: can't run " + parameters.get("watchhook") + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        static void log(String line) {
+            progress.println(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " " + line);
+        }
+    }
+
+    // serve=<port>: getMOSPatch runs as a caching mirror of MOS for the other hosts of the network.
+    //   GET /<patch>/<plat_lang>/            the files of the patch for the platform/language, one per line
+    //   GET /<patch>/<plat_lang>/<file.zip>  the file, Range requests are supported
+    // The files are kept in the staging directory. A file that isn't there yet is downloaded from MOS once by
+    // transferFile, however many clients ask for it at the same time: they all read the .part file while it's
+    // written (a segmented download is only served when it's complete). The least recently requested files are
+    // removed when the staging directory holds more than servequota=<MB> (20GB, 0 for no limit).
+    // Anyone who can connect downloads from MOS with the credentials of the mirror (there's no authentication),
+    // so it listens on the loopback interface unless servebind=<address> (i.e. 0.0.0.0) is given.
+    // The MOS session is checked before MOS is searched, at most once a minute, and renewed if it has expired.
+    private static final int DEFAULT_SERVE_QUOTA = 20480;
+    private static final long SESSION_CHECK_INTERVAL = 60 * 1000L;
+
+    private static class Mirror implements HttpHandler {
+        final HttpServer server;
+        final File dir = new File(parameters.containsKey("stagedir") ? parameters.get("stagedir") : ".");
+        final long quota = intParam("servequota", DEFAULT_SERVE_QUOTA) * 1024L * 1024L;
+        final ExecutorService fetchPool = Executors.newFixedThreadPool(Math.max(1, intParam("threads", 1)));
+        // file name -> download from MOS in progress
+        final Map<String, Future<Object>> fetches = new HashMap<String, Future<Object>>();
+        // file name -> size of the files in the staging directory, least recently requested first
+        final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        final SessionCookieStore session;
+        volatile long sessionChecked = System.currentTimeMillis();
+        long cached;
+
+        Mirror(int port, SessionCookieStore session) throws IOException {
+            this.session = session;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir.getPath());
+            }
+            // the files of the previous runs are taken in the order they were downloaded
+            File[] zips = dir.listFiles(new FilenameFilter() {
+                public boolean accept(File d, String name) {
+                    return name.endsWith(".zip");
+                }
+            });
+            Arrays.sort(zips, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return a.lastModified() < b.lastModified() ? -1 : a.lastModified() > b.lastModified() ? 1 : 0;
+                }
+            });
+            for (File f : zips) {
+                files.put(f.getName(), f.length());
+                cached += f.length();
+            }
+            String bind = parameters.containsKey("servebind") ? parameters.get("servebind") : "127.0.0.1";
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(bind), port), 64);
+            server.createContext("/", this);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+        }
+
+        public void handle(HttpExchange ex) throws IOException {
+            try {
+                String[] path = ex.getRequestURI().getPath().replaceAll("^/+", "").split("/");
+                if (!"GET".equals(ex.getRequestMethod()) && !"HEAD".equals(ex.getRequestMethod())) {
+                    send(ex, 405, "method not allowed");
+                } else if (path.length < 2 || !path[0].matches("\\d+") || !path[1].matches("\\w+")) {
+                    send(ex, 404, "use /<patch>/<plat_lang>/ or /<patch>/<plat_lang>/<file.zip>");
+                } else if (path.length == 2) {
+                    StringBuilder sb = new StringBuilder();
+                    for (String url : search(path[0], path[1]).urls) {
+                        sb.append(zipName(url)).append('\n');
+                    }
+                    send(ex, 200, sb.toString());
+                } else if (path.length == 3 && path[2].matches("[\\w.\\-]+\\.zip")) {
+                    file(ex, path[0], path[1], path[2]);
+                } else {
+                    send(ex, 404, "not found");
+                }
+            } catch (FileNotFoundException e) {
+                send(ex, 404, e.getMessage());
+            } catch (IOException e) {
+                progress.println(" FAILED: " + ex.getRequestURI() + " (" + e + ")");
+                // the headers may have been sent already, then the client only sees the connection closed
+                try {
+                    send(ex, 502, String.valueOf(e));
+                } catch (IOException ignored) {
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                ex.close();
+            }
+        }
+
+        private SearchResult search(String patch, String platform) throws IOException {
+            long now = System.currentTimeMillis();
+            if (now - sessionChecked >= SESSION_CHECK_INTERVAL) {
+                renewSession(session);
+                sessionChecked = now;
+            }
+            Map<String, String> platforms = Collections.singletonMap(platform,
+                    configuredPlatforms.containsKey(platform) ? configuredPlatforms.get(platform) : "Platform " + platform);
+            return searchPatches(Collections.singletonList(patch), platforms, null, false).get(0);
+        }
+
+        private void file(HttpExchange ex, String patch, String platform, String name)
+                throws IOException, InterruptedException {
+            File target = new File(dir, name);
+            File part = new File(target.getPath() + ".part");
+            Future<Object> fetch;
+            RandomAccessFile raf = null;
+            String source;
+            synchronized (this) {
+                fetch = fetches.get(name);
+                if (fetch != null) {
+                    source = "shared download";
+                } else if (target.exists()) {
+                    // opened here, so the file can't be removed by evict() before it's read
+                    raf = new RandomAccessFile(target, "r");
+                    files.get(name);
+                    source = "cached";
+                } else {
+                    fetch = fetch(patch, platform, name, target);
+                    source = "downloading from MOS";
+                }
+            }
+            progress.println(" " + ex.getRemoteAddress().getAddress().getHostAddress() + " " + name + " - " + source);
+
+            Transfer transfer = null;
+            if (raf == null) {
+                // wait until the download writes the file from the start, or until it's complete
+                while (!fetch.isDone() && (transfer = growingFiles.get(part.getPath())) == null) {
+                    Thread.sleep(100);
+                }
+                try {
+                    if (transfer == null || transfer.length < 0) {
+                        throw new FileNotFoundException();
+                    }
+                    raf = new RandomAccessFile(part, "r");
+                } catch (FileNotFoundException e) {
+                    // the download is complete (the .part file was renamed), or its size isn't known
+                    waitFor(fetch);
+                    transfer = null;
+                    raf = new RandomAccessFile(target, "r");
+                }
+            }
+            try {
+                send(ex, raf, transfer == null ? raf.length() : transfer.length, transfer, fetch, part);
+            } finally {
+                raf.close();
+            }
+        }
+
+        // runs the download in the fetch pool, the caller holds the lock
+        private Future<Object> fetch(final String patch, final String platform, final String name, final File target) {
+            Future<Object> fetch = fetchPool.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    String url = null;
+                    try {
+                        SearchResult result = search(patch, platform);
+                        for (String u : result.urls) {
+                            if (zipName(u).equals(name)) {
+                                url = u;
+                            }
+                        }
+                        if (url == null) {
+                            throw new FileNotFoundException(name + " is not a file of patch " + patch + " for " + platform);
+                        }
+                        expectDigest(url, result.digests);
+                        transferFile(url, target.getPath(), false);
+                        return null;
+                    } finally {
+                        if (url != null) {
+                            expectedDigests.remove(url);
+                        }
+                        synchronized (Mirror.this) {
+                            fetches.remove(name);
+                            if (target.exists()) {
+                                Long previous = files.put(name, target.length());
+                                cached += target.length() - (previous == null ? 0 : previous);
+                                evict(name);
+                            }
+                        }
+                    }
+                }
+            });
+            fetches.put(name, fetch);
+            return fetch;
+        }
+
+        // removes the least recently requested files until the quota is met, the caller holds the lock
+        private void evict(String keep) throws IOException {
+            Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+            while (quota > 0 && cached > quota && it.hasNext()) {
+                Map.Entry<String, Long> e = it.next();
+                File f = new File(dir, e.getKey());
+                if (e.getKey().equals(keep) || fetches.containsKey(e.getKey()) || (f.exists() && !f.delete())) {
+                    continue;
+                }
+                cached -= e.getValue();
+                it.remove();
+                updateManifest(f, null);
+                progress.println(" removed " + e.getKey() + " (" + cached / 1024 / 1024 + "MB of "
+                        + quota / 1024 / 1024 + "MB used)");
+            }
+        }
+
+        // sends the file, or the requested range of it. If transfer isn't null the file is still being
+        // downloaded, and only the bytes it has received so far are read.
+        private void send(HttpExchange ex, RandomAccessFile raf, long length, Transfer transfer,
+                Future<Object> fetch, File part) throws IOException, InterruptedException {
+            long from = 0;
+            long to = length - 1;
+            int status = 200;
+            String range = ex.getRequestHeaders().getFirst("Range");
+            Matcher m = Pattern.compile("bytes=(\\d*)-(\\d*)").matcher(range == null ? "" : range.trim());
+            if (m.matches() && m.group(1).length() + m.group(2).length() > 0) {
+                if (m.group(1).length() == 0) {
+                    // the last N bytes
+                    from = Math.max(0, length - Long.parseLong(m.group(2)));
+                } else {
+                    from = Long.parseLong(m.group(1));
+                    if (m.group(2).length() > 0) {
+                        to = Math.min(to, Long.parseLong(m.group(2)));
+                    }
+                }
+                if (from > to) {
+                    ex.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    ex.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                ex.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + length);
+            }
+            ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+            ex.getResponseHeaders().set("Content-Type", "application/zip");
+            if ("HEAD".equals(ex.getRequestMethod())) {
+                ex.getResponseHeaders().set("Content-Length", String.valueOf(to - from + 1));
+                ex.sendResponseHeaders(status, -1);
+                return;
+            }
+            ex.sendResponseHeaders(status, to - from + 1);
+            OutputStream out = ex.getResponseBody();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = from;
+            while (position <= to) {
+                long available = transfer == null || fetch.isDone() ? length : transfer.resumed + transfer.received.get();
+                if (position < available) {
+                    raf.seek(position);
+                    int bytesRead = raf.read(buffer, 0, (int) Math.min(buffer.length, Math.min(available, to + 1) - position));
+                    if (bytesRead < 0) {
+                        throw new IOException("unexpected end of " + part.getPath());
+                    }
+                    out.write(buffer, 0, bytesRead);
+                    position += bytesRead;
+                } else {
+                    // a retry of the download registers a new transfer. If it continues the .part file, the bytes
+                    // sent so far are still valid and it's followed; if it starts again from byte 0 (the digest
+                    // didn't match, or the server ignored the Range request) the file may be different.
+                    Transfer next = transfer == null ? null : growingFiles.get(part.getPath());
+                    if (next != null && next != transfer) {
+                        if (next.resumed == 0) {
+                            throw new IOException("the download of " + part.getName() + " was restarted");
+                        }
+                        transfer = next;
+                    } else {
+                        Thread.sleep(50);
+                    }
+                }
+                if (transfer != null && fetch.isDone()) {
+                    // throws if the download failed
+                    waitFor(fetch);
+                }
+            }
+            out.close();
+        }
+
+        private void send(HttpExchange ex, int status, String body) throws IOException {
+            byte[] data = body.getBytes("UTF-8");
+            ex.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            ex.sendResponseHeaders(status, data.length == 0 ? -1 : data.length);
+            if (data.length > 0) {
+                OutputStream out = ex.getResponseBody();
+                out.write(data);
+                out.close();
+            }
+        }
+    }
+
+    // the peak resident set size of this process in KB, from /proc (Linux only), -1 if it isn't available
+    private static long peakRSS() {
+        try {
+            for (String line : readFile("/proc/self/status").split("\n")) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (Exception e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int bytesRead;
+        try {
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
         }
+        return out.toString("UTF-8");
     }
 
     public static void main(String[] args) throws IOException {
@@ -647,48 +3850,137 @@ public class getMOSPatch {
                 }
             }
 
+            if (parameters.containsKey("mosurl")) {
+                mosURL = parameters.get("mosurl").replaceAll("/+$", "");
+            }
+            retry.configure();
+            engine = selectEngine();
+            if (parameters.containsKey("store")) {
+                store = new Store(parameters.get("store"));
+                if (checkParam("storegc", "yes")) {
+                    store.gc();
+                    return;
+                }
+            }
+
+            instrument = parameters.containsKey("report") || parameters.containsKey("metrics");
+            rateLimiter.setRate(intParam("maxrate", 0) * 1024L);
+            rateLimiter.setControlFile(parameters.get("ratefile"));
+
             // Setting the Cookie handling and the Authenticator
-            CookieManager cookieMgr = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+            SessionCookieStore session = checkParam("session", "yes") ? new SessionCookieStore() : null;
+            CookieManager cookieMgr = new CookieManager(session, CookiePolicy.ACCEPT_ALL);
             CookieHandler.setDefault(cookieMgr);
             // Authenticator.setDefault(new CustomAuthenticator());
 
             // Logs on to MOS, and initiates the Authenticator and the SSL session
             setAuthentication();
-            String waste = downloadString("https://updates.oracle.com/Orion/Services/download");
+            if (session != null && session.load() && isSessionValid()) {
+                System.out.println("Reusing the MOS session stored in " + SESSION_FILE);
+            } else {
+                if (session != null) {
+                    session.removeAll();
+                }
+                String waste = downloadString(mosURL + "/Orion/Services/download");
+                if (session != null) {
+                    session.save();
+                }
+            }
             debug.put("1. set up", System.currentTimeMillis() - t1);
 
-            // Iterate through the requested patches and download them one by one
-            if (parameters.containsKey("patch")) {
-
-                t1 = System.currentTimeMillis();
-                platforms();
-                debug.put("2. get platforms", System.currentTimeMillis() - t1);
+            if (parameters.containsKey("serve")) {
+                Mirror mirror = new Mirror(intParam("serve", 0), session);
+                System.out.println("Serving the files of " + mirror.dir.getAbsolutePath() + " on "
+                        + mirror.server.getAddress().getAddress().getHostAddress() + ":" + mirror.server.getAddress().getPort()
+                        + " (stop it with Ctrl+C)");
+                if (instrument) {
+                    writeReports(debug);
+                }
+                return;
+            }
 
-                t1 = System.currentTimeMillis();
-                for (String p : parameters.get("patch").split(",")) {
-                    if (!"".equals(p))
-                        buildDLFileList(p, parameters.get("regexp"));
+            // a request that still fails after all retries ends the run, with the report of what was done. Files that
+            // failed don't stop the run, but it exits with 1 as well once everything is reported.
+            boolean failed = false;
+            boolean incomplete = false;
+            try {
+                // Iterate through the requested patches and download them one by one
+                if (parameters.containsKey("patch")) {
+
+                    t1 = System.currentTimeMillis();
+                    platforms();
+                    debug.put("2. get platforms", System.currentTimeMillis() - t1);
+
+                    t1 = System.currentTimeMillis();
+                    List<String> patches = new ArrayList<String>();
+                    for (String p : parameters.get("patch").split(",")) {
+                        if (!"".equals(p))
+                            patches.add(p);
+                    }
+                    buildDLFileList(patches, parameters.get("regexp"));
+                    debug.put("3. build list", System.currentTimeMillis() - t1);
+
+                    // Download all files
+                    t1 = System.currentTimeMillis();
+                    incomplete = downloadAllFiles() > 0;
+                    debug.put("4. download files", System.currentTimeMillis() - t1);
+
+                } else if (parameters.containsKey("manifest")) {
+                    // the platforms are only needed for jobs that don't list them, don't ask for them here
+                    t1 = System.currentTimeMillis();
+                    if (parameters.containsKey("platform") || new File(".getMOSPatch.cfg").exists()) {
+                        platforms();
+                    }
+                    debug.put("2. get platforms", System.currentTimeMillis() - t1);
+
+                    t1 = System.currentTimeMillis();
+                    incomplete = new BatchRun().run(parameters.get("manifest")) > 0;
+                    debug.put("3. manifest jobs", System.currentTimeMillis() - t1);
+                } else if (parameters.containsKey("watch")) {
+                    if (parameters.containsKey("platform") || new File(".getMOSPatch.cfg").exists()) {
+                        platforms();
+                    }
+                    new Watch(parameters.get("watch"), session, debug).run();
+                } else {
+                    System.out.println("\nNo patch numbers are specified.");
+                    return;
                 }
-                debug.put("3. build list", System.currentTimeMillis() - t1);
+            } catch (IOException e) {
+                System.out.println("\nERROR: " + e.getMessage());
+                retry.report();
+                failed = true;
+            } finally {
+                if (instrument) {
+                    writeReport(debug);
+                }
+            }
+            if (failed) {
+                System.exit(1);
+            }
 
-                // Download all files
-                t1 = System.currentTimeMillis();
-                downloadAllFiles();
-                debug.put("4. download files", System.currentTimeMillis() - t1);
+            // the cookies may have been renewed during the run
+            if (session != null) {
+                session.save();
+            }
+            retry.report();
 
-                if (checkParam("debug", "yes")) {
-                    System.out.println("Timings (ms): ");
-                    for (Map.Entry<String, Long> e : debug.entrySet()) {
-                        System.out.printf(" %20s: %9d%n", e.getKey(), e.getValue());
-                    }
+            if (checkParam("debug", "yes")) {
+                System.out.println("Timings (ms): ");
+                for (Map.Entry<String, Long> e : debug.entrySet()) {
+                    System.out.printf(" %20s: %9d%n", e.getKey(), e.getValue());
                 }
-            } else {
-                System.out.println("\nNo patch numbers are specified.");
+                long rss = peakRSS();
+                if (rss > 0) {
+                    System.out.println("Peak RSS: " + rss / 1024 + " MB");
+                }
+            }
+            if (incomplete) {
+                System.exit(1);
             }
         } else {
             System.out.println("\nERROR: At least one parameter needs to be specified!");
             System.out.println(
-                    "USAGE: java -jar getMOSPatch.jar patch=<patch_number_1>[,<patch_number_n>]* [platform=<plcode_1>[,<plcode_n>]*] [reset=yes] [regexp=<regular_expression>] [download=all] [MOSUser=<username>] [MOSPass=<password>]");
+                    "USAGE: java -jar getMOSPatch.jar patch=<patch_number_1>[,<patch_number_n>]* [platform=<plcode_1>[,<plcode_n>]*] [reset=yes] [regexp=<regular_expression>] [download=all] [stagedir=<directory path>] [threads=<n>] [segments=<n>] [searchthreads=<n>] [manifest=<file>] [MOSUser=<username>] [MOSPass=<password>]");
         }
     }
 }